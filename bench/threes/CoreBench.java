@@ -0,0 +1,217 @@
+package threes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import threes.Board.Direction;
+
+/**
+ * Microbenchmarks of the hot paths: moving a board, computing and scoring
+ * its features, the priority queue, and a whole lookahead.
+ *
+ * The boards are real positions: each board in the boards directory is
+ * played forward (taking the move with the best evaluation), and the
+ * positions along the way are used.
+ *
+ * Usage: CoreBench [boards_dir] [filter]
+ * @author Jeremy Tan, 20933708
+ */
+public class CoreBench {
+  /** Positions to take from each input board */
+  private static final int POSITIONS_PER_BOARD = 400;
+  /** Size of the position pool; a power of 2 */
+  private static final int POOL_SIZE = 1024;
+  private static final int[] factors = {18,2,2,9};
+  private static final Direction[] directions = {
+    Direction.LEFT, Direction.UP, Direction.RIGHT, Direction.DOWN
+  };
+
+  /** The positions, and the tile sequence that goes with each */
+  private final Board[] boards = new Board[POOL_SIZE];
+  private final int[][] sequences = new int[POOL_SIZE][];
+  /** The longest game played, and its sequence, for the lookaheads */
+  private final List<Board> game = new ArrayList<>();
+  private int[] game_sequence;
+
+  /**
+   * Plays every board in a directory forward to collect positions.
+   */
+  private CoreBench(File dir) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null || files.length == 0) {
+      throw new IOException("No boards in " + dir);
+    }
+    Arrays.sort(files);
+
+    List<Board> all = new ArrayList<>();
+    List<int[]> all_sequences = new ArrayList<>();
+    for (File f : files) {
+      int[] bt = new int[Board.BOARD_SPACE], s;
+      try {
+        s = Threes.parseBoard(f.getPath(), bt);
+      } catch (IOException | IllegalArgumentException e) {
+        continue; //Not a board
+      }
+
+      List<Board> played = new ArrayList<>();
+      Board b = new Board(bt);
+      while (!b.finished() && played.size() < POSITIONS_PER_BOARD) {
+        played.add(b);
+        Board best = null;
+        for (Direction d : directions) {
+          Board n = new Board(b);
+          if (n.move(s, d) && (best == null ||
+              n.evaluate(factors) > best.evaluate(factors))) {
+            best = n;
+          }
+        }
+        if (best == null) {
+          break;
+        }
+        b = best;
+      }
+      for (Board p : played) {
+        all.add(p);
+        all_sequences.add(s);
+      }
+      if (played.size() > game.size()) {
+        game.clear();
+        game.addAll(played);
+        game_sequence = s;
+      }
+    }
+    if (all.isEmpty()) {
+      throw new IOException("No boards in " + dir);
+    }
+
+    //Spread the pool evenly over everything that was played
+    for (int i = 0; i < POOL_SIZE; i++) {
+      int j = (int)((long)i * all.size() / POOL_SIZE);
+      boards[i] = all.get(j);
+      sequences[i] = all_sequences.get(j);
+    }
+    System.out.printf("%d positions from %d boards; lookaheads on %d positions%n",
+                      all.size(), files.length, game.size());
+  }
+
+  private List<Microbench> benchmarks() {
+    List<Microbench> ret = new ArrayList<>();
+
+    ret.add(new Microbench("board.copy") {
+      @Override protected long run(int ops) {
+        long r = 0;
+        for (int i = 0; i < ops; i++) {
+          r += new Board(boards[i & (POOL_SIZE - 1)]).packed();
+        }
+        return r;
+      }
+    });
+    for (final Direction d : directions) {
+      ret.add(new Microbench("board.move." + d.name()) {
+        @Override protected long run(int ops) {
+          long r = 0;
+          for (int i = 0; i < ops; i++) {
+            int j = i & (POOL_SIZE - 1);
+            Board n = new Board(boards[j]);
+            if (n.move(sequences[j], d)) {
+              r += n.packed();
+            }
+          }
+          return r;
+        }
+      });
+    }
+
+    ret.add(new Microbench("features.of") {
+      @Override protected long run(int ops) {
+        long r = 0;
+        for (int i = 0; i < ops; i++) {
+          Board b = boards[i & (POOL_SIZE - 1)];
+          r += Features.of(b.packed(), b.packedHigh());
+        }
+        return r;
+      }
+    });
+    final String[] heuristics = {
+      "dof", "zeros", "nCombinable", "checkerboarding3", "smoothness", "evaluate"
+    };
+    for (int h = 0; h < heuristics.length; h++) {
+      final int which = h;
+      ret.add(new Microbench("features." + heuristics[h]) {
+        @Override protected long run(int ops) {
+          long r = 0;
+          for (int i = 0; i < ops; i++) {
+            long f = boards[i & (POOL_SIZE - 1)].features();
+            switch (which) {
+              case 0: r += Features.dof(f); break;
+              case 1: r += Features.zeros(f); break;
+              case 2: r += Features.nCombinable(f); break;
+              case 3: r += Features.checkerboarding3(f); break;
+              case 4: r += Features.smoothness(f); break;
+              default: r += Features.evaluate(f, factors); break;
+            }
+          }
+          return r;
+        }
+      });
+    }
+
+    final int[] scores = new int[POOL_SIZE];
+    for (int i = 0; i < POOL_SIZE; i++) {
+      scores[i] = (int)((i * 0x9E3779B97F4A7C15L) >>> 44); //Scrambled
+    }
+    ret.add(new Microbench("queue.add") {
+      //Scores that rise over time, as they do in the solver: once the queue
+      //is full, some adds push out the worst board and some are turned away
+      @Override protected long run(int ops) {
+        LimitedQueue q = new LimitedQueue(200);
+        for (int i = 0; i < ops; i++) {
+          int j = i & (POOL_SIZE - 1);
+          q.add(boards[j], (i >> 2) + (scores[j] & 1023));
+        }
+        return q.size();
+      }
+    });
+    //Includes refilling the queue whenever it runs out
+    ret.add(new Microbench("queue.pollLast") {
+      @Override protected long run(int ops) {
+        long r = 0;
+        LimitedQueue q = new LimitedQueue(POOL_SIZE);
+        for (int i = 0; i < ops; i++) {
+          if (q.isEmpty()) {
+            for (int j = 0; j < POOL_SIZE; j++) {
+              q.add(boards[j], scores[j]);
+            }
+          }
+          r += q.pollLast().packed();
+        }
+        return r;
+      }
+    });
+
+    for (int depth = 4; depth <= 8; depth++) {
+      final int d = depth;
+      ret.add(new Microbench("lookahead.depth" + d) {
+        private final ASSolver solver = new ASSolver(game_sequence, true, false,
+                d, -1, -1, -1, -1, -1, -1, 0, false, 0);
+        @Override protected long run(int ops) {
+          long r = 0;
+          for (int i = 0; i < ops; i++) {
+            r += solver.lookahead(game.get(i % game.size()), 20, d, null).size();
+          }
+          return r;
+        }
+      });
+    }
+    return ret;
+  }
+
+  public static void main(String[] args) throws IOException {
+    File dir = new File(args.length > 0 ? args[0] : "testing/boards");
+    String filter = args.length > 1 ? args[1] : "";
+    CoreBench b = new CoreBench(dir);
+    Microbench.runAll(b.benchmarks(), filter, System.out);
+  }
+}
@@ -0,0 +1,98 @@
+package threes;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A small microbenchmark harness, along the lines of JMH (which isn't
+ * available to this build). Each benchmark is run for a number of warm-up
+ * iterations, so that the JIT has compiled it, then for a number of
+ * measured iterations of about the same length. The result is the mean
+ * time per operation, with its standard deviation over the iterations.
+ *
+ * Every benchmark returns a value computed from its results, which is
+ * kept in a volatile field so that the work can't be optimised away.
+ * @author Jeremy Tan, 20933708
+ */
+public abstract class Microbench {
+  /** Target length of each iteration */
+  private static final long ITERATION_NS = 100000000L;
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int MEASURED_ITERATIONS = 10;
+  private static volatile long sink;
+
+  private final String name;
+
+  protected Microbench(String name) {
+    this.name = name;
+  }
+
+  public String name() {
+    return name;
+  }
+
+  /**
+   * Performs the operation being measured a number of times.
+   * @param ops The number of times
+   * @return Anything that depends on the results
+   */
+  protected abstract long run(int ops);
+
+  /**
+   * Times one iteration.
+   * @return The time taken, in ns
+   */
+  private long iteration(int ops) {
+    long time = System.nanoTime();
+    sink += run(ops);
+    return System.nanoTime() - time;
+  }
+
+  /**
+   * Measures this benchmark.
+   * @return {mean, standard deviation} in ns per operation, and the
+   *         number of operations per iteration
+   */
+  public double[] measure() {
+    //Find how many operations make up an iteration
+    int ops = 1;
+    long t;
+    while ((t = iteration(ops)) < ITERATION_NS / 4 && ops < (1 << 28)) {
+      ops *= 2;
+    }
+    ops = (int)Math.max(1, Math.min(Integer.MAX_VALUE,
+                                    (double)ops * ITERATION_NS / Math.max(1, t)));
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      iteration(ops);
+    }
+    double sum = 0, sum2 = 0;
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      double per_op = (double)iteration(ops) / ops;
+      sum += per_op;
+      sum2 += per_op * per_op;
+    }
+    double mean = sum / MEASURED_ITERATIONS;
+    double var = Math.max(0, sum2 / MEASURED_ITERATIONS - mean * mean);
+    return new double[] {mean, Math.sqrt(var), ops};
+  }
+
+  /**
+   * Runs every benchmark whose name matches a pattern, and prints a table
+   * of the results.
+   * @param benches The benchmarks
+   * @param filter A regular expression, found anywhere in the name
+   * @param out Where to print the results
+   */
+  public static void runAll(List<Microbench> benches, String filter, PrintStream out) {
+    Pattern p = Pattern.compile(filter);
+    out.printf("%-28s %14s %12s %10s%n", "Benchmark", "ns/op", "+-", "ops/iter");
+    for (Microbench b : benches) {
+      if (p.matcher(b.name()).find()) {
+        double[] r = b.measure();
+        out.printf("%-28s %14.2f %12.2f %10d%n", b.name(), r[0], r[1], (long)r[2]);
+      }
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package threes;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import threes.Board.Direction;
+
+/**
+ * End-to-end benchmark: solves every board in a directory with fixed
+ * settings, and checks the results against a stored baseline.
+ *
+ * With the settings used, the solver is deterministic, so the score, the
+ * moves and the number of nodes expanded should only change when the search
+ * does. A different score or number of moves (better or worse: record a new
+ * baseline if it was meant to change), noticeably more nodes, or noticeably
+ * more time than the baseline is a failure.
+ *
+ * Times are kept relative to a calibration loop (playing random games on
+ * Boards) that is timed on the same run, so that a baseline recorded on one
+ * machine can be checked on another, or on a busier one.
+ *
+ * Usage: RegressionBench [-record] [baseline_file] [boards_dir]
+ * With -record, the baseline is (re)written instead of checked.
+ * @author Jeremy Tan, 20933708
+ */
+public class RegressionBench {
+  /** As in run_testsuite.sh, but single-threaded so it's repeatable */
+  private static final String[] SETTINGS = {"-s", "-a", "4", "-u", "300", "-q", "20000"};
+  /** Allowed increase in nodes expanded, per board */
+  private static final double NODES_TOLERANCE = 0.10;
+  /** Allowed increase in relative time, per board and in total */
+  private static final double BOARD_TIME_TOLERANCE = 0.50;
+  private static final double TOTAL_TIME_TOLERANCE = 0.25;
+  /** Boards quicker than this (relative) are too noisy to judge on their own time */
+  private static final double MIN_BOARD_TIME = 0.25;
+  /** Timed solves per board (the quickest is kept), after one to warm up */
+  private static final int SOLVE_RUNS = 3;
+  /** Moves made per calibration run, and the number of runs */
+  private static final int CALIBRATION_MOVES = 2000000;
+  private static final int CALIBRATION_RUNS = 5;
+  private static final int[] CALIBRATION_FACTORS = {18,2,2,9};
+  private static final String HEADER = "board,score,moves,nodes,time";
+
+  /** The result of solving one board */
+  private static class Result {
+    private String board;
+    private int score, moves;
+    private long nodes;
+    /** As measured, and relative to the calibration loop (recorded) */
+    private double seconds, time;
+
+    private String csv() {
+      return String.format("%s,%d,%d,%d,%.3f", board, score, moves, nodes, time);
+    }
+
+    private static Result parse(String line) {
+      String[] p = line.split(",");
+      Result r = new Result();
+      r.board = p[0];
+      r.score = Integer.parseInt(p[1]);
+      r.moves = Integer.parseInt(p[2]);
+      r.nodes = Long.parseLong(p[3]);
+      r.time = Double.parseDouble(p[4]);
+      return r;
+    }
+  }
+
+  /**
+   * Solves one board.
+   * @return The result, or null if it isn't a valid board
+   */
+  private static Result solve(File f, Threes.Settings settings) {
+    int[] bt = new int[Board.BOARD_SPACE], s;
+    try {
+      s = Threes.parseBoard(f.getPath(), bt);
+    } catch (IOException | IllegalArgumentException e) {
+      return null;
+    }
+
+    Solver solver = Threes.newSolver(s, settings);
+    long time = System.nanoTime();
+    Board bs = solver.solve(new Board(bt));
+    time = System.nanoTime() - time;
+
+    Result r = new Result();
+    r.board = f.getName();
+    r.score = bs.score();
+    r.moves = bs.pathLength();
+    r.nodes = solver instanceof ASSolver ? ((ASSolver)solver).nodesExpanded() : 0;
+    r.seconds = time / 1000000000.0;
+    return r;
+  }
+
+  /**
+   * Plays random games (from a fixed seed), making and evaluating a fixed
+   * number of moves: the same kind of work as the solver, without the
+   * search, so it slows down with the machine but not with the solver.
+   * @return The quickest of the runs, in seconds
+   */
+  private static double calibrate() {
+    Direction[] directions = Direction.values();
+    double best = Double.MAX_VALUE;
+    long check = 0;
+    for (int run = 0; run < CALIBRATION_RUNS; run++) {
+      Random r = new Random(0x3021);
+      int[] s = new int[4096];
+      for (int i = 0; i < s.length; i++) {
+        s[i] = 1 + r.nextInt(3);
+      }
+      long time = System.nanoTime();
+      Board b = null;
+      for (int i = 0, moves = 0; moves < CALIBRATION_MOVES; i++) {
+        if (b == null || b.finished() || b.nMoves() >= s.length) {
+          int[] t = new int[Board.BOARD_SPACE];
+          for (int j = 0; j < t.length; j++) {
+            t[j] = r.nextInt(2) == 0 ? 0 : 1 + r.nextInt(3);
+          }
+          b = new Board(t);
+        }
+        Board n = new Board(b);
+        if (n.move(s, directions[r.nextInt(directions.length)])) {
+          check += n.evaluate(CALIBRATION_FACTORS);
+          b = n;
+          moves++;
+        } else if (i % 64 == 0) {
+          b = null; //Don't get stuck on a board with few moves
+        }
+      }
+      best = Math.min(best, (System.nanoTime() - time) / 1000000000.0);
+    }
+    if (check == 42) { //So the work isn't optimised away
+      System.out.println();
+    }
+    return best;
+  }
+
+  private static Map<String, Result> readBaseline(File file) throws IOException {
+    Map<String, Result> ret = new LinkedHashMap<>();
+    try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+      String c = br.readLine(); //Header
+      while ((c = br.readLine()) != null) {
+        if (!c.isEmpty()) {
+          Result r = Result.parse(c);
+          ret.put(r.board, r);
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Compares a result to its baseline.
+   * @return What's wrong with it, or null if nothing is
+   */
+  private static String check(Result r, Result base) {
+    if (base == null) {
+      return "not in baseline";
+    } else if (r.score != base.score) {
+      return String.format("score %d != %d", r.score, base.score);
+    } else if (r.moves != base.moves) {
+      return String.format("moves %d != %d", r.moves, base.moves);
+    } else if (r.nodes > base.nodes * (1 + NODES_TOLERANCE)) {
+      return String.format("nodes %d > %d", r.nodes, base.nodes);
+    } else if (r.time > MIN_BOARD_TIME &&
+               r.time > base.time * (1 + BOARD_TIME_TOLERANCE)) {
+      return String.format("time %.3f > %.3f", r.time, base.time);
+    }
+    return null;
+  }
+
+  public static void main(String[] args) throws IOException {
+    List<String> rest = new ArrayList<>(Arrays.asList(args));
+    boolean record = rest.remove("-record");
+    File baseline = new File(rest.size() > 0 ? rest.get(0) : "bench/baseline.csv");
+    File dir = new File(rest.size() > 1 ? rest.get(1) : "testing/boards");
+
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("No boards in " + dir);
+    }
+    Arrays.sort(files);
+    Threes.Settings settings = Threes.parseSettings(SETTINGS);
+
+    //Once through to warm up the JIT, then again for real
+    for (File f : files) {
+      solve(f, settings);
+    }
+    double calibration = calibrate();
+    List<Result> results = new ArrayList<>();
+    for (File f : files) {
+      Result r = solve(f, settings);
+      for (int i = 1; r != null && i < SOLVE_RUNS; i++) {
+        r.seconds = Math.min(r.seconds, solve(f, settings).seconds);
+      }
+      if (r != null) {
+        results.add(r);
+      }
+    }
+    //Before and after, in case the machine was busy for one of them
+    calibration = Math.min(calibration, calibrate());
+    for (Result r : results) {
+      r.time = r.seconds / calibration;
+    }
+    System.out.printf("Calibration: %.3fs\n", calibration);
+
+    if (record) {
+      try (PrintWriter w = new PrintWriter(baseline, "UTF-8")) {
+        w.println(HEADER);
+        for (Result r : results) {
+          w.println(r.csv());
+        }
+      }
+      System.out.printf("Recorded %d boards to %s\n", results.size(), baseline);
+      return;
+    }
+
+    Map<String, Result> base = readBaseline(baseline);
+    int failures = 0;
+    double total = 0, base_total = 0;
+    System.out.printf("%-28s %9s %9s %12s %8s %8s %10s  %s\n", "Board", "Score",
+                      "Moves", "Nodes", "Seconds", "Time", "m/s", "Result");
+    for (Result r : results) {
+      String problem = check(r, base.get(r.board));
+      Result b = base.get(r.board);
+      if (b != null) {
+        total += r.time;
+        base_total += b.time;
+      }
+      String result = problem != null ? "FAIL: " + problem : "ok";
+      if (problem != null) {
+        failures++;
+      }
+      System.out.printf("%-28s %9d %9d %12d %8.3f %8.3f %10.2f  %s\n", r.board,
+                        r.score, r.moves, r.nodes, r.seconds, r.time,
+                        r.moves / Math.max(r.seconds, 1e-9), result);
+    }
+    for (String board : base.keySet()) {
+      boolean found = false;
+      for (Result r : results) {
+        found |= r.board.equals(board);
+      }
+      if (!found) {
+        System.out.printf("%-28s FAIL: missing\n", board);
+        failures++;
+      }
+    }
+
+    System.out.printf("Total time: %.3f (baseline %.3f)\n", total, base_total);
+    if (total > base_total * (1 + TOTAL_TIME_TOLERANCE)) {
+      System.out.println("FAIL: total time");
+      failures++;
+    }
+    if (failures > 0) {
+      System.out.printf("%d failures\n", failures);
+      System.exit(1);
+    }
+    System.out.println("All ok");
+  }
+}
@@ -2,6 +2,9 @@ package threes;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import threes.Board.Direction;
 import static threes.Threes.log_info;
 
@@ -14,33 +17,123 @@ public class ASSolver implements Solver{
   private static final int DEFAULT_PQ_SIZE = 200;
   private static final int DEFAULT_IPQ_SIZE = 2;
   private static final int DEFAULT_QUI_SIZE = 5000;
+  static final int DEFAULT_TT_SIZE = 16;
+  /** Only look up subtrees with at least this much depth remaining */
+  private static final int TT_MIN_DEPTH = 2;
+  /** Smallest default grain; see the grain field */
+  private static final int MIN_DEFAULT_GRAIN = 2;
+  /** 
+   * Only order the children of nodes with at least this much depth 
+   * remaining. Lower down, ordering costs more than it saves.
+   */
+  private static final int ORDER_MIN_DEPTH = 4;
+  /** 
+   * Default for margin: none, so only subtrees that eval_bound rules out
+   * are skipped and the results are those of the full search. A margin of
+   * 160 covers how much the evaluation (less the degrees of freedom term)
+   * went up per move below the vast majority of subtrees.
+   */
+  private static final int DEFAULT_MARGIN = 0;
+  /** The largest value of the degrees of freedom term, 4^4 */
+  private static final int MAX_DOF_TERM = 1 << (2 * Board.BOARD_WIDTH);
+  /** A move combines at most one pair per line, and adds a tile */
+  private static final int MAX_ZEROS_GAINED = Board.BOARD_WIDTH - 1;
+  /** Interior nodes to search between looking at the clock */
+  private static final int TIME_CHECK_INTERVAL = 1024;
+  /** 
+   * With a deadline, a lookahead may take up to this fraction of the time 
+   * that's left before its depth is reduced.
+   */
+  private static final int DEADLINE_SHARE = 4;
+  /** 
+   * With a deadline, the depth of the first lookahead, before there's
+   * a time to base the depth on.
+   */
+  private static final int DEADLINE_FIRST_DEPTH = 4;
+  /** Asynchronous mode: queues in the frontier for each thread */
+  private static final int QUEUES_PER_THREAD = 2;
   private static final int BOARD_WIDTH = Board.BOARD_WIDTH;
   private static final int[] factors = {18,2,2,9}; //The best all-rounder
   private static final Board.Direction[] directions = {
     Board.Direction.LEFT, Board.Direction.UP, Board.Direction.RIGHT, Board.Direction.DOWN
   };
   
-  /**
-   * Limits the thread to between 1 and 4. The reason it's capped
-   * at 4 is that the multi-threading implementation only explores
-   * at most 4 subtrees.
-   */
-  private static final int THREAD_COUNT;
-  static {
-    int nt = Runtime.getRuntime().availableProcessors();
-    nt = nt <= 1 ? 1 : nt > 4 ? 4 : nt;
-    THREAD_COUNT = nt;
-  }
-  
-  private final Comparator<Board> BOARD_COMPARER;
   private final int[] tileSequence;
+  /** Give up on a stalled search after this many seconds */
   private final long maxTime;
+  /** Time limit for each solve in ms, or 0 for none */
+  private final long time_limit;
+  /** Whether to cut the lookahead depth short as the deadline nears */
+  private final boolean degrade;
+  /** When the current solve must finish by (System.nanoTime), if limited */
+  private long deadline;
   private final int nThreads, lookahead_depth, pq_size, ipq_size, qui_size;
-  private LimitedQueue<Board> pq;
-  private Board fbest = null;
-  private int fbest_score = -1;
+  /** 
+   * Subtrees with at most this much depth remaining are searched
+   * sequentially by one task, instead of being split further.
+   */
+  private final int grain;
+  /** Whether to use the asynchronous search, see solve_async */
+  private final boolean async;
+  private LimitedQueue pq;
+  /** Positions expanded in the current lookahead; null if disabled */
+  private final TranspositionTable tt;
+  /** Each search thread makes its moves in place on its own board */
+  private final ThreadLocal<SearchBoard> searchBoard = new ThreadLocal<SearchBoard>() {
+    @Override protected SearchBoard initialValue() {
+      return new SearchBoard(tileSequence, lookahead_depth);
+    }
+  };
+  /** 
+   * Leaves are evaluated in batches, unless the lookahead is too deep for
+   * them to be stored (then they're offered one at a time).
+   */
+  private final ThreadLocal<LeafBatch> leafBatch = new ThreadLocal<LeafBatch>() {
+    @Override protected LeafBatch initialValue() {
+      return lookahead_depth <= LeafBatch.MAX_DEPTH ? new LeafBatch() : null;
+    }
+  };
+  /** Where each thread puts the results of its part of a lookahead */
+  private final ThreadLocal<Accumulator> accumulator = new ThreadLocal<Accumulator>() {
+    @Override protected Accumulator initialValue() {
+      return new Accumulator();
+    }
+  };
+  /** The lookahead in progress */
+  private Expansion expansion;
+  /** 
+   * Upper bound on the evaluation of a board, by the most empty cells it 
+   * could have; null if there isn't one (see Features.evaluationBound).
+   */
+  private final int[] eval_bound;
+  /** 
+   * How much the evaluation is assumed to go up by per move, on top of the
+   * degrees of freedom term, when deciding whether a subtree can be 
+   * skipped. Unlike eval_bound, this is optimistic rather than a strict
+   * bound, so it can lose the odd leaf. 0 to only use eval_bound.
+   */
+  private final int margin;
+  /** Solves boards close to the end exactly; null if disabled */
+  private final ThreadLocal<EndgameSolver> endgame;
+  /** Subtrees skipped by can_prune, and interior nodes expanded */
+  private final AtomicLong pruned = new AtomicLong(), expanded = new AtomicLong();
+  private volatile Board fbest = null;
+  private volatile int fbest_score = -1;
+  /** Guards updates to fbest */
+  private final ReentrantLock best_lock = new ReentrantLock();
+  private final Telemetry telemetry = Telemetry.create();
+  
+  public ASSolver(int[] s, boolean singleThreaded, boolean async, int lookahead, int pq_size, int ipq_size, int qui_size, int tt_size, int grain, int margin, long time_limit, boolean degrade, final int endgame_tiles) {
+    this(s, singleThreaded, async, lookahead, pq_size, ipq_size, qui_size, tt_size, grain, margin, time_limit, degrade, endgame_tiles, null);
+  }
   
-  public ASSolver(int[] s, boolean singleThreaded, int lookahead, int pq_size, int ipq_size, int qui_size) {
+  /**
+   * As above, but reusing a transposition table (e.g. from an earlier 
+   * solver), instead of making a new one.
+   * @param table The table, or null to make one of tt_size (if not 0).
+   *              Must not be used by anything else until this is done.
+   */
+  public ASSolver(int[] s, boolean singleThreaded, boolean async, int lookahead, int pq_size, int ipq_size, int qui_size, int tt_size, int grain, int margin, long time_limit, boolean degrade, final int endgame_tiles, TranspositionTable table) {
     this.tileSequence = new int[s.length];
     System.arraycopy(s, 0, tileSequence, 0, s.length);
     
@@ -48,107 +141,341 @@ public class ASSolver implements Solver{
     this.pq_size = pq_size < 1 ? DEFAULT_PQ_SIZE : pq_size;
     this.ipq_size = ipq_size < 1 ? DEFAULT_IPQ_SIZE : ipq_size;
     this.qui_size = qui_size < 1 ? DEFAULT_QUI_SIZE : qui_size;
-    this.nThreads = (singleThreaded || THREAD_COUNT == 1) ? 1 : THREAD_COUNT;
-    this.maxTime = (s.length / 5) * 1000000000L;
-    this.BOARD_COMPARER = new BComparer();
+    this.nThreads = (singleThreaded || SearchPool.THREAD_COUNT == 1) ? 
+                    1 : SearchPool.THREAD_COUNT;
+    this.async = async;
+    this.grain = grain < 1 ? 
+            Math.max(MIN_DEFAULT_GRAIN, this.lookahead_depth - 4) : grain;
+    this.maxTime = s.length / 5;
+    this.time_limit = Math.max(0, time_limit);
+    this.degrade = degrade;
+    this.eval_bound = eval_bounds(factors);
+    this.endgame = endgame_tiles == 0 ? null : new ThreadLocal<EndgameSolver>() {
+      @Override protected EndgameSolver initialValue() {
+        return new EndgameSolver(tileSequence, endgame_tiles, telemetry);
+      }
+    };
+    this.margin = margin < 0 ? DEFAULT_MARGIN : margin;
+    tt_size = tt_size < 0 ? DEFAULT_TT_SIZE : tt_size;
+    if (table != null) {
+      table.newSearch(); //Forget the last solver's searches
+      tt_size = (int)(table.size() >> 20);
+    }
+    this.tt = table != null ? table : 
+              tt_size == 0 ? null : new TranspositionTable(tt_size);
     
     log_info("Lookahead depth: %d", this.lookahead_depth);
     log_info("Main PQ size: %d", this.pq_size);
     log_info("Nominal individual PQ size: %d", this.ipq_size);
     log_info("Quiescence limit: %d", this.qui_size);
     log_info("No. of threads to be used: %d", nThreads);
+    log_info("Lookahead task grain: %d", this.grain);
+    log_info("Asynchronous search: %s", async ? "yes" : "no");
+    log_info("Transposition table size: %dMiB", tt_size);
+    log_info("Pruning margin: %d", this.margin);
+    log_info("Exact endgame: %s", endgame == null ? "no" : 
+             endgame_tiles < 0 ? "default" : endgame_tiles + " tiles");
+    if (this.time_limit > 0) {
+      log_info("Time limit: %dms%s", this.time_limit, 
+               degrade ? ", reducing lookahead near the end" : "");
+    }
     
-    this.pq = new LimitedQueue<>(this.BOARD_COMPARER, this.pq_size);
+    this.pq = new LimitedQueue(this.pq_size);
   }
   
   public ASSolver(int[] s) {
-    this(s, true, -1, -1, -1, -1);
+    this(s, true, false, -1, -1, -1, -1, -1, -1, -1, 0, false, 0);
   }
   
   /**
-   * This needs to be synchronised as multiple threads could
-   * potentially be trying to update the best (finished) board.
-   * @param b The candidate board
+   * Cost + heuristic evaluation.
+   * A scaling factor of 6 for the cost seems to work okay.
+   * Setting it too low (e.g &le; 4) causes it to evaluate nodes
+   * at the same depth instead of continuing further.
    */
-  private synchronized void updateBest(Board b) {
-    int score = b.score();
-    if (score > fbest_score) {
-      fbest_score = score;
-      fbest = b;
+  private static int fscore(int nMoves, int evaluation) {
+    return nMoves * 6 + evaluation;
+  }
+  
+  private int fscore(Board b) {
+    return fscore(b.nMoves(), b.evaluate(factors));
+  }
+  
+  private static int[] eval_bounds(int[] factors) {
+    int[] bound = new int[Board.BOARD_SPACE + 1];
+    for (int z = 0; z < bound.length; z++) {
+      bound[z] = Features.evaluationBound(z, factors);
+      if (bound[z] == Integer.MAX_VALUE) {
+        return null;
+      }
+    }
+    return bound;
+  }
+  
+  /**
+   * Can the subtree below a board be skipped? That's when none of its
+   * leaves could get into the (full) result queue, and it can't hold any
+   * finished boards. The tile sequence mustn't run out, and as a board can
+   * only get stuck once it's full, it must have more empty cells than there
+   * are moves left (each move fills at most one).
+   * @param b The board
+   * @param acc The results so far
+   * @param remaining The depth remaining below the board
+   * @return true iff the subtree can be skipped
+   */
+  private boolean can_prune(SearchBoard b, Accumulator acc, int remaining) {
+    if (eval_bound == null || !acc.lq.isFull()) {
+      return false;
+    }
+    int zeros = Features.zeros(b.features());
+    if (zeros <= remaining || 
+        b.nMoves() + remaining >= tileSequence.length) {
+      return false;
+    }
+    int maxZeros = Math.min(zeros + MAX_ZEROS_GAINED * remaining, 
+                            Board.BOARD_SPACE);
+    int bound = eval_bound[maxZeros];
+    if (margin > 0) {
+      long f = b.features();
+      int optimistic = Features.evaluate(f, factors) + 
+                       MAX_DOF_TERM - (1 << (2 * Features.dof(f))) + 
+                       margin * remaining;
+      bound = Math.min(bound, optimistic);
+    }
+    return fscore(b.nMoves() + remaining, bound) <= acc.lq.firstScore();
+  }
+  
+  /**
+   * Adds a leaf to a result queue. The leaf is only turned into a Board
+   * if it would actually be kept in the queue.
+   * @param acc Where to put the result
+   * @param b The leaf
+   */
+  private void offer(Accumulator acc, SearchBoard b) {
+    int f = fscore(b.nMoves(), b.evaluate(factors));
+    acc.leaves++;
+    if (!acc.lq.isFull() || f > acc.lq.firstScore()) {
+      acc.lq.add(b.toBoard(), f);
+      acc.boards++;
+    }
+  }
+  
+  /**
+   * Evaluates a batch of leaves, then adds them to a result queue in the
+   * order that they were found, as for offer.
+   * @param acc Where to put the results
+   * @param batch The leaves. Emptied on return.
+   */
+  private void flush(Accumulator acc, LeafBatch batch) {
+    batch.evaluate(factors);
+    for (int i = 0; i < batch.size(); i++) {
+      int f = fscore(batch.nMoves(i), batch.evaluation(i));
+      if (!acc.lq.isFull() || f > acc.lq.firstScore()) {
+        acc.lq.add(batch.toBoard(i), f);
+        acc.boards++;
+      }
     }
+    acc.leaves += batch.size();
+    batch.clear();
   }
   
   /**
    * A recursively defined depth-limited depth first search.
+   * Moves are made in place on the search board and undone on return.
    * @param b The board position to search from
-   * @param ret Where to store the result
+   * @param acc Where to store the result
+   * @param batch Where to buffer leaves, or null to offer them directly
    * @param depth The current depth
-   * @param limit The depth limit
    */
-  private void lookahead_dfs(Board b, LimitedQueue<Board> ret, int depth) {
-    if (depth >= lookahead_depth) {
+  private void lookahead_dfs(SearchBoard b, Accumulator acc, 
+                             LeafBatch batch, int depth) {
+    int remaining = acc.expansion.depth - depth;
+    if (remaining <= 0) {
       if (b.finished()) {
-        updateBest(b);
-      } else {
-        ret.add(b);
+        acc.updateBest(b);
+      } else if (batch == null) {
+        offer(acc, b);
+      } else if (batch.add(b)) {
+        flush(acc, batch);
       }
       return;
+    } else if (acc.out_of_time()) {
+      return;
+    } else if (tt != null && remaining >= TT_MIN_DEPTH && 
+               tt.visit(b.zobrist() ^ acc.expansion.salt, remaining)) {
+      return; //Already been through this subtree (maybe on another thread)
     }
     
-    for (int i = 0; i < BOARD_WIDTH; i++) {
-      Board next = new Board(b);
-      if (next.move(tileSequence, directions[i])) {
-        if (next.finished()) {
-          updateBest(next);
-        } else {
-          lookahead_dfs(next, ret, depth + 1);
+    //There's nothing to prune against until the result queue is full,
+    //so don't keep the leaves that would fill it waiting in the batch
+    if (batch != null && !acc.lq.isFull() && 
+        batch.size() >= acc.expansion.size) {
+      flush(acc, batch);
+    }
+    if (can_prune(b, acc, remaining)) {
+      acc.pruned++;
+      return;
+    }
+    acc.expanded++;
+    
+    if (remaining < ORDER_MIN_DEPTH) {
+      for (int i = 0; i < BOARD_WIDTH; i++) {
+        if (b.make(directions[i])) {
+          if (b.finished()) {
+            acc.updateBest(b);
+          } else {
+            lookahead_dfs(b, acc, batch, depth + 1);
+          }
+          b.unmake();
         }
       }
+      return;
+    }
+    
+    //Better moves first, so that the better leaves are found first
+    int n = b.orderMoves(directions, factors);
+    for (int i = 0; i < n; i++) {
+      b.make(b.orderedMove(i));
+      if (b.finished()) {
+        acc.updateBest(b);
+      } else {
+        lookahead_dfs(b, acc, batch, depth + 1);
+      }
+      b.unmake();
     }
   }
   
   /**
-   * A parallelised depth limited depth-first search.
-   * Note that each thread has their own LimitedQueue, which is then
-   * combined at the end into one. This is to avoid having to lock/synchronise
-   * access to the one return value.
+   * Runs lookahead_dfs from a board, on this thread's search board.
    * @param b The board position to search from
-   * @param pool The thread pool in which to submit jobs to
-   * @return A LimitedQueue containing the top MAX_QUEUE_SIZE nodes
+   * @param acc Where to store the result
+   * @param depth The current depth
+   */
+  private void lookahead_dfs(Board b, Accumulator acc, int depth) {
+    SearchBoard sb = searchBoard.get();
+    LeafBatch batch = leafBatch.get();
+    sb.reset(b);
+    lookahead_dfs(sb, acc, batch, depth);
+    if (batch != null) {
+      flush(acc, batch);
+    }
+  }
+  
+  /**
+   * @return This thread's accumulator, ready for (and counted in) the 
+   *         current lookahead
    */
-  private LimitedQueue<Board> lookahead_pdfs(Board b, int size, ExecutorService pool) {
-    List<Future<LimitedQueue<Board>>> rets = new ArrayList<>();
-    LimitedQueue<Board> fret = new LimitedQueue<>(BOARD_COMPARER, size);
+  private Accumulator accumulator() {
+    Accumulator acc = accumulator.get();
+    if (acc.expansion != expansion) {
+      acc.reset(expansion);
+      expansion.accumulators.add(acc);
+    }
+    return acc;
+  }
+  
+  /**
+   * A depth-limited depth-first search of the given depth from a board.
+   * With a pool, subtrees are split off recursively as fork/join tasks;
+   * otherwise the whole search is run on this thread. Either way, every 
+   * thread keeps its own result queue and best board, and these are only
+   * combined once the search is done.
+   * Not private, so that it can be benchmarked on its own.
+   * @param b The board position to search from
+   * @param size The size of the result queue
+   * @param depth The depth to search to
+   * @param pool The pool to run the search on, or null
+   * @return A LimitedQueue containing the top size nodes
+   */
+  LimitedQueue lookahead(Board b, int size, int depth, ForkJoinPool pool) {
+    expansion = new Expansion(size, fbest_score, 0, depth, deadline);
+    if (tt != null) {
+      tt.newSearch();
+    }
     
-    for (Direction d : directions) {
-      Board n = new Board(b);
-      if (n.move(tileSequence, d)) {
-        rets.add(pool.submit(new ParallelDFS(n, size)));
-      }
+    if (pool == null) {
+      lookahead_dfs(b, accumulator(), 0);
+    } else {
+      pool.invoke(new LookaheadTask(b, 0));
     }
     
-    for (Future<LimitedQueue<Board>> ret : rets) {
-      try {
-        LimitedQueue<Board> c = ret.get();
-        fret.addAll(c);
-      } catch (InterruptedException | ExecutionException e) {
-        System.err.println("Error: " + e.getMessage());
+    LimitedQueue ret = new LimitedQueue(size);
+    for (Accumulator acc : expansion.accumulators) {
+      ret.addAll(acc.lq);
+      pruned.addAndGet(acc.pruned);
+      expanded.addAndGet(acc.expanded);
+      telemetry.search(acc.expanded, acc.leaves, acc.boards, acc.lq.trimmed());
+      if (acc.best_score > fbest_score) {
+        fbest_score = acc.best_score;
+        fbest = acc.best;
+        telemetry.improved(fbest);
       }
     }
-    
-    return fret;
+    return ret;
   }
   
   /**
-   * A single-threaded depth-limited depth-first search. Used primarily
-   * to verify that the multi-threaded version works as expected.
-   * @param b The board position to search from
-   * @return A LimitedQueue containing the top MAX_QUEUE_SIZE nodes
+   * @return true iff there's a deadline and it has passed
+   */
+  private boolean past_deadline() {
+    return deadline != 0 && System.nanoTime() - deadline >= 0;
+  }
+  
+  /**
+   * How deep the next lookahead can go. Without a deadline (or with 
+   * degrade off) that's always lookahead_depth. Otherwise, as each ply 
+   * costs about 4 times as much as the one before, the last lookahead's 
+   * time is scaled to estimate how long each depth would take. The depth is
+   * reduced until it would take no more than a share of the time left.
+   * The first lookahead is kept shallow, as there's nothing to go on.
+   * @param last_ns How long the last lookahead took, or 0 if none yet
+   * @param last_depth The depth of the last lookahead
+   * @return The depth to search to
+   */
+  private int next_depth(long last_ns, int last_depth) {
+    if (deadline == 0 || !degrade) {
+      return lookahead_depth;
+    } else if (last_ns <= 0) {
+      return Math.min(lookahead_depth, DEADLINE_FIRST_DEPTH);
+    }
+    long left = (deadline - System.nanoTime()) / DEADLINE_SHARE;
+    int d = lookahead_depth;
+    double estimate = last_ns * Math.pow(BOARD_WIDTH, d - last_depth);
+    while (d > 1 && estimate > left) {
+      d--;
+      estimate /= BOARD_WIDTH;
+    }
+    return d;
+  }
+  
+  /**
+   * Have we searched enough?
+   * E.g < 5 m/s or tile sequence exhausted. The mps is stabilised by 
+   * discounting it if the time is < 20s.
+   * @param start When the search was started
+   * @param best The best finished board so far
+   * @param nFBestSame The number of expansions since it was found
+   * @return true iff the search should stop
+   */
+  private boolean search_done(long start, Board best, int nFBestSame) {
+    long runtime = ((System.nanoTime() - start) / 1000000000L)+1;
+    long mps = best.nMoves() / runtime;
+    return ((runtime > maxTime || (runtime > 20 && mps < 5)) && nFBestSame >= 5) || 
+           (best.nMoves() == tileSequence.length && nFBestSame >= (qui_size / 40)) ||
+           nFBestSame >= qui_size;
+  }
+  
+  @Override
+  public Telemetry telemetry() {
+    return telemetry;
+  }
+  
+  /**
+   * @return The number of interior nodes expanded by lookaheads in the
+   *         last solve
    */
-  private LimitedQueue<Board> lookahead_ldfs(Board b, int size) {
-    LimitedQueue<Board> lq = new LimitedQueue<>(BOARD_COMPARER, size);
-    lookahead_dfs(b, lq, 0);
-    return lq;
+  public long nodesExpanded() {
+    return expanded.get();
   }
   
   /**
@@ -159,32 +486,50 @@ public class ASSolver implements Solver{
    */
   @Override
   public Board solve(Board b) {
-    ExecutorService pool = null;
-    long start = System.nanoTime();
-    Board prevFBest = null;
-    int nFBestSame = 0, nfbCounter = 0;
+    deadline = time_limit > 0 ? System.nanoTime() + time_limit * 1000000L : 0;
     fbest = null;
     fbest_score = -1;
+    pruned.set(0);
+    expanded.set(0);
+    telemetry.reset();
+    if (tt != null) {
+      tt.newSearch();
+    }
     
-    if (nThreads > 1) {
-      pool = Executors.newFixedThreadPool(nThreads);
+    long trimmed = pq.trimmed();
+    Board ret = async ? new AsyncSearch().run(b) : solve_sync(b);
+    if (!async) {
+      telemetry.search(0, 0, 0, pq.trimmed() - trimmed);
+    }
+    if (tt != null) {
+      log_info("Transposition table: %d hits, %d misses", tt.hits(), tt.misses());
     }
+    log_info("Pruned subtrees: %d, expanded nodes: %d", pruned.get(), expanded.get());
+    return ret == null ? b : ret;
+  }
+  
+  /**
+   * The best board is taken from the main priority queue, and the best
+   * boards found by a lookahead from it are put back, one at a time.
+   * @param b The board to be solved
+   * @return The final board. If the deadline passed before one was 
+   *         found, the best board that was still being searched from. 
+   *         Null if there aren't any.
+   */
+  private Board solve_sync(Board b) {
+    ForkJoinPool pool = nThreads > 1 ? SearchPool.get() : null;
+    long start = System.nanoTime();
+    Board prevFBest = null;
+    int nFBestSame = 0, nfbCounter = 0;
+    long last_ns = 0;
+    int last_depth = lookahead_depth;
     
-    pq.add(b);
-    while (!pq.isEmpty()) {
+    pq.add(b, fscore(b));
+    while (!pq.isEmpty() && !past_deadline()) {
       //If we have a potential solution
       if (fbest != null) {
-        long runtime = ((System.nanoTime() - start) / 1000000000L)+1;
-        long mps = fbest.nMoves() / runtime;
-        //If we've searched enough - e.g < 5 m/s or tile sequence exhausted
-        //Stabilise the mps - discount if time < 20s
-        if (((runtime > maxTime || (runtime > 20 && mps < 5)) && nFBestSame >= 5) || 
-            (fbest.nMoves() == tileSequence.length && nFBestSame >= (qui_size / 40)) ||
-            nFBestSame >= qui_size) {
-          if (pool != null) {
-            pool.shutdown();
-          }
-          return fbest;
+        if (search_done(start, fbest, nFBestSame)) {
+          break;
         }
         
         //Check: Are we stalled?
@@ -204,123 +549,345 @@ public class ASSolver implements Solver{
       
       if (nfbCounter == pq_size * 2) {
         //Logic: If we're stuck, we might as well drop half the top and try from somewhere else...
-        log_info("DROP HALF");
-        pq = pq.dropHalf();
+        trace_drop_half();
+        pq.dropHalf();
+        telemetry.dropHalf();
       }
       
       Board n = pq.pollLast();
-      log_info("PQ Size: %d (%d)", pq.size(), nFBestSame);
-      log_info(n);
+      if (Trace.on()) {
+        Trace.pop(n, pq.size(), nFBestSame);
+      } else {
+        log_info("PQ Size: %d (%d)", pq.size(), nFBestSame);
+        log_info(n);
+      }
+      if (endgame_applies(n)) {
+        offer_best(endgame.get().solve(n, fbest_score));
+        continue;
+      }
       
-      LimitedQueue<Board> lq;
       //If the priority queue is not full (< 45%), fill it fast.
       int size = (100 * pq.size()) / pq_size < 45 ? 20 : ipq_size;
-      if (nThreads > 1) {
-        lq = lookahead_pdfs(n, size, pool);
-      } else {
-        lq = lookahead_ldfs(n, size);
+      int depth = next_depth(last_ns, last_depth);
+      long time = System.nanoTime();
+      pq.addAll(lookahead(n, size, depth, pool));
+      if (fbest == null && past_deadline()) {
+        pq.add(n, fscore(n)); //Still the furthest along, maybe
       }
-        pq.addAll(lq);
+      last_ns = System.nanoTime() - time;
+      last_depth = depth;
+      telemetry.lookahead(last_ns);
     }
     
-    if (pool != null) {
-      pool.shutdown();
+    return fbest != null || pq.isEmpty() ? fbest : pq.last();
+  }
+  
+  /**
+   * Keeps a finished board if it's the best so far.
+   * @param b The board, or null
+   * @return true iff the best board was replaced
+   */
+  private boolean offer_best(Board b) {
+    if (b == null) {
+      return false;
+    }
+    lock_best();
+    try {
+      int score = b.score();
+      if (score <= fbest_score) {
+        return false;
+      }
+      fbest_score = score;
+      fbest = b;
+    } finally {
+      best_lock.unlock();
     }
-    return fbest == null ? b : fbest;
+    telemetry.improved(b);
+    return true;
   }
   
   /**
-   * Creates a 'Priority Queue' or more like a sorted set that is limited
-   * in size. Only items with the highest evaluation gets kept in the queue 
-   * if the size limit is reached.
-   * @param <T> 
+   * Takes the lock on fbest, counting it if another thread has it.
    */
-  private class LimitedQueue<T> extends TreeSet<T> {
-    private final int sizeLimit;
-    public LimitedQueue(Comparator<? super T> comparator, int sizeLimit) {
-      super(comparator);
-      this.sizeLimit = sizeLimit;
+  private void lock_best() {
+    if (!best_lock.tryLock()) {
+      telemetry.contended();
+      best_lock.lock();
     }
+  }
+  
+  private static void trace_drop_half() {
+    if (Trace.on()) {
+      Trace.dropHalf();
+    } else {
+      log_info("DROP HALF");
+    }
+  }
+  
+  /**
+   * @param b The board
+   * @return true iff the rest of the game should be solved exactly, 
+   *         instead of by lookaheads
+   */
+  private boolean endgame_applies(Board b) {
+    return endgame != null && endgame.get().applies(b);
+  }
+  
+  /**
+   * Keeps the best board of a lookahead if it's the best so far.
+   * @param acc The results of the lookahead
+   * @return true iff the best board was replaced
+   */
+  private boolean merge_best(Accumulator acc) {
+    Board b;
+    lock_best();
+    try {
+      if (acc.best_score <= fbest_score) {
+        return false;
+      }
+      fbest_score = acc.best_score;
+      fbest = b = acc.best;
+    } finally {
+      best_lock.unlock();
+    }
+    telemetry.improved(b);
+    return true;
+  }
+  
+  /**
+   * The parameters of one lookahead.
+   */
+  private static class Expansion {
+    private final int size, best_score, depth;
+    /** When the lookahead must stop (System.nanoTime), or 0 */
+    private final long deadline;
+    /** 
+     * XORed into the transposition table keys, so that lookaheads that 
+     * run at the same time don't see each other's entries.
+     */
+    private final long salt;
+    /** 
+     * The accumulators of the threads that took part, when the lookahead 
+     * is split between threads (see accumulator()) 
+     */
+    private final List<Accumulator> accumulators = new CopyOnWriteArrayList<>();
     
-    private boolean addUnchecked(T t) {
-      return super.add(t);
+    public Expansion(int size, int best_score, long salt, int depth, long deadline) {
+      this.size = size;
+      this.best_score = best_score;
+      this.salt = salt;
+      this.depth = depth;
+      this.deadline = deadline;
     }
-
-    public LimitedQueue<T> dropHalf() {
-      LimitedQueue<T> ret = new LimitedQueue<>(comparator(), sizeLimit);
-      Iterator<T> it = iterator();
-      for (int i = 0; i < size() / 2 && it.hasNext(); i++) {
-        ret.addUnchecked(it.next());
+  }
+  
+  /**
+   * The results of one thread's part of a lookahead. Only ever touched
+   * by its own thread until the lookahead has finished.
+   */
+  private static class Accumulator {
+    private Expansion expansion;
+    private LimitedQueue lq;
+    private Board best;
+    private int best_score;
+    private long pruned, expanded, leaves, boards;
+    /** Set once the deadline has passed */
+    private boolean expired;
+    private int until_check;
+    
+    public void reset(Expansion e) {
+      expansion = e;
+      pruned = 0;
+      expanded = 0;
+      leaves = 0;
+      boards = 0;
+      expired = false;
+      until_check = TIME_CHECK_INTERVAL;
+      lq = new LimitedQueue(e.size);
+      best = null;
+      best_score = e.best_score;
+    }
+    
+    /**
+     * Called for every interior node. Only looks at the clock every so often.
+     * @return true iff the lookahead's deadline has passed
+     */
+    public boolean out_of_time() {
+      if (expired || expansion.deadline == 0 || --until_check > 0) {
+        return expired;
       }
-      return ret;
+      until_check = TIME_CHECK_INTERVAL;
+      expired = System.nanoTime() - expansion.deadline >= 0;
+      return expired;
     }
     
-    @Override
-    public boolean add(T t) {
-      boolean ret = super.add(t);
-      if (ret) {
-        while (size() > sizeLimit) {
-          pollFirst();
-        }
+    public void updateBest(SearchBoard b) {
+      int score = b.score();
+      if (score > best_score) {
+        best_score = score;
+        best = b.toBoard();
+        boards++;
       }
-      return ret;
     }
     
-    @Override
-    public boolean addAll(Collection<? extends T> c) {
-      boolean ret = super.addAll(c);
-      if (ret) {
-        while (size() > sizeLimit) {
-          pollFirst();
-        }
+    public void updateBest(Board b) {
+      int score = b.score();
+      if (score > best_score) {
+        best_score = score;
+        best = b;
       }
-      return ret;
     }
   }
   
   /**
-   * Comparer class for the boards, using an evaluation function and a cost
-   * function. The cost function is the number of moves that a board has made.
+   * Splits a lookahead into a task per subtree, until the subtrees are
+   * small enough to be searched in one go (see grain).
    */
-  private class BComparer implements Comparator<Board> {
-    private int evaluate(Board b) {
-      return ((int)Math.pow(4, b.dof())) + 
-             factors[0] * b.zeros() + 
-             factors[1] * b.checkerboarding3() + 
-             factors[2] * b.smoothness() + 
-             factors[3] * b.nCombinable();
+  private class LookaheadTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Board input;
+    private final int depth;
+    
+    public LookaheadTask(Board b, int depth) {
+      this.input = b;
+      this.depth = depth;
     }
 
-    /**
-     * Cost + heuristic evaluation.
-     * A scaling factor of 6 for the cost seems to work okay.
-     * Setting it too low (e.g &le; 4) causes it to evaluate nodes
-     * at the same depth instead of continuing further.
-     * @param o1 Board 1
-     * @param o2 Board 2
-     * @return Whatever the comparator spec says - I forget the order
-     */
     @Override
-    public int compare(Board o1, Board o2) {
-      int f1 = o1.nMoves() * 6 + evaluate(o1);
-      int f2 = o2.nMoves() * 6 + evaluate(o2);
-      return f1 - f2;
+    protected void compute() {
+      int remaining = expansion.depth - depth;
+      if (remaining <= grain) {
+        lookahead_dfs(input, accumulator(), depth);
+        return;
+      } else if (accumulator().out_of_time() || (tt != null && 
+                 tt.visit(input.zobrist() ^ expansion.salt, remaining))) {
+        return;
+      }
+      
+      List<LookaheadTask> tasks = new ArrayList<>(BOARD_WIDTH);
+      for (Direction d : directions) {
+        Board n = new Board(input);
+        if (n.move(tileSequence, d)) {
+          if (n.finished()) {
+            accumulator().updateBest(n);
+          } else {
+            tasks.add(new LookaheadTask(n, depth + 1));
+          }
+        }
+      }
+      invokeAll(tasks);
     }
   }
-  
-  private class ParallelDFS implements Callable<LimitedQueue<Board>> {
-    private final Board input;
-    private final LimitedQueue<Board> lq;
+
+  /**
+   * Asynchronous form of solve_sync. Each thread repeatedly takes one of the 
+   * best boards from a shared MultiQueue, runs its own (sequential) lookahead 
+   * from it and puts the results back, without waiting on the other threads.
+   * The boards aren't taken in strict order, but there is no single loop 
+   * for the threads to queue up behind.
+   */
+  private class AsyncSearch implements Callable<Void> {
+    private final long start = System.nanoTime();
+    private final MultiQueue frontier = 
+            new MultiQueue(QUEUES_PER_THREAD * nThreads, pq_size);
+    /** Threads that may still add boards to the frontier */
+    private final AtomicInteger busy = new AtomicInteger();
+    /** Lookaheads since fbest was last replaced */
+    private final AtomicInteger nFBestSame = new AtomicInteger();
+    private volatile boolean done;
     
-    public ParallelDFS(Board b, int size) {
-      this.input = b;
-      this.lq = new LimitedQueue<>(BOARD_COMPARER, size);
+    /**
+     * @param b The board to be solved
+     * @return The final board, or null if none were found
+     */
+    public Board run(Board b) {
+      frontier.add(b, fscore(b), ThreadLocalRandom.current());
+      try {
+        for (Future<Void> f : SearchPool.get().invokeAll(
+                Collections.nCopies(nThreads, this))) {
+          f.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      }
+      telemetry.search(0, 0, 0, frontier.trimmed());
+      return fbest != null ? fbest : frontier.pollLast(ThreadLocalRandom.current());
     }
-
+    
     @Override
-    public LimitedQueue<Board> call() {
-      lookahead_dfs(input, lq, 1);
-      return lq;
+    public Void call() {
+      Random rnd = ThreadLocalRandom.current();
+      Accumulator acc = accumulator.get();
+      long last_ns = 0;
+      int last_depth = lookahead_depth;
+      
+      while (!done) {
+        if (past_deadline()) {
+          done = true;
+          break;
+        }
+        busy.incrementAndGet();
+        Board n = frontier.pollLast(rnd);
+        if (n == null) {
+          //Only finished once nobody can add any more boards
+          if (busy.decrementAndGet() == 0 && frontier.isEmpty()) {
+            done = true;
+          }
+          Thread.yield();
+          continue;
+        }
+        
+        if (endgame_applies(n)) {
+          if (offer_best(endgame.get().solve(n, fbest_score))) {
+            nFBestSame.set(0);
+          }
+          busy.decrementAndGet();
+          continue;
+        }
+        
+        //If the frontier is not full (< 45%), fill it fast.
+        int size = (100 * frontier.size()) / pq_size < 45 ? 20 : ipq_size;
+        int depth = next_depth(last_ns, last_depth);
+        long time = System.nanoTime();
+        acc.reset(new Expansion(size, fbest_score, rnd.nextLong(), depth, deadline));
+        lookahead_dfs(n, acc, 0);
+        frontier.addAll(acc.lq, rnd);
+        if (acc.expired && fbest == null) {
+          frontier.add(n, fscore(n), rnd);
+        }
+        last_ns = System.nanoTime() - time;
+        telemetry.lookahead(last_ns);
+        last_depth = depth;
+        pruned.addAndGet(acc.pruned);
+        expanded.addAndGet(acc.expanded);
+        telemetry.search(acc.expanded, acc.leaves, acc.boards, acc.lq.trimmed());
+        
+        if (merge_best(acc)) {
+          nFBestSame.set(0);
+        } else if (fbest != null) {
+          int same = nFBestSame.incrementAndGet();
+          //If we're stuck, drop half the top and try from somewhere else
+          if (same % (pq_size * 5) == pq_size * 2) {
+            trace_drop_half();
+            frontier.dropHalf();
+            telemetry.dropHalf();
+          }
+        }
+        
+        Board best = fbest;
+        if (best != null && search_done(start, best, nFBestSame.get())) {
+          done = true;
+        }
+        if (Trace.on()) {
+          Trace.queue(frontier.size(), nFBestSame.get());
+        } else {
+          log_info("PQ Size: %d (%d)", frontier.size(), nFBestSame.get());
+        }
+        busy.decrementAndGet();
+      }
+      return null;
     }
-  } 
+  }
 }
@@ -0,0 +1,165 @@
+package threes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import static threes.Threes.log_info;
+
+/**
+ * Batch mode: solves many boards in the one JVM, a few at a time, so that
+ * JVM start-up and JIT warm-up are only paid for once.
+ * Each board gets its own output file (as with -o), and a summary of every
+ * board is written to summary.csv, in the order the boards were given.
+ * @author Jeremy Tan, 20933708
+ */
+public class Batch {
+  private static final String SUMMARY_FILE = "summary.csv";
+
+  private final Threes.Settings settings;
+  private final File outDir;
+  private final int jobs;
+
+  /**
+   * @param settings The solver settings, with the input boards and the
+   *                 output directory
+   */
+  public Batch(Threes.Settings settings) {
+    this.settings = settings;
+    this.outDir = new File(settings.batchDir);
+    this.jobs = settings.jobs();
+  }
+
+  /**
+   * Lists the boards to solve: each input file, or every file in an input
+   * directory (sorted by name).
+   * @param inputs The input files and directories
+   * @return The files
+   */
+  static List<File> boards(List<String> inputs) {
+    List<File> ret = new ArrayList<>();
+    for (String input : inputs) {
+      File f = new File(input);
+      File[] files = f.listFiles();
+      if (files == null) {
+        ret.add(f);
+        continue;
+      }
+      Arrays.sort(files);
+      for (File g : files) {
+        if (g.isFile()) {
+          ret.add(g);
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Solves every board, then writes the summary.
+   * @throws IOException If the output directory or summary can't be written
+   */
+  public void run() throws IOException {
+    if (!outDir.isDirectory() && !outDir.mkdirs()) {
+      throw new IOException("Can't create " + outDir);
+    }
+    List<File> boards = boards(settings.inputs);
+    log_info("Batch: %d boards, %d at a time", boards.size(), jobs);
+
+    ExecutorService pool = Executors.newFixedThreadPool(jobs);
+    List<Future<Job>> results = new ArrayList<>();
+    long time = System.nanoTime();
+    try {
+      for (File f : boards) {
+        results.add(pool.submit(new Job(f)));
+      }
+      try (PrintWriter w = new PrintWriter(new File(outDir, SUMMARY_FILE), "UTF-8")) {
+        w.println("board,score,moves,tiles,seconds,result");
+        for (Future<Job> r : results) {
+          w.println(r.get().csv());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+    System.out.printf("Solved %d boards in %.2f seconds.\n", boards.size(),
+                      (System.nanoTime() - time) / 1000000000.0);
+  }
+
+  /**
+   * Solves one board. Never throws: a board that can't be read or solved
+   * is reported in its result instead.
+   */
+  private class Job implements Callable<Job> {
+    private final File file;
+    private int score = -1, moves = -1, tiles = -1;
+    private long runtime;
+    private String result = "ok";
+
+    public Job(File file) {
+      this.file = file;
+    }
+
+    @Override
+    public Job call() {
+      int[] bt = new int[Board.BOARD_SPACE], s;
+      try {
+        s = Threes.parseBoard(file.getPath(), bt);
+      } catch (IOException | IllegalArgumentException e) {
+        result = "invalid: " + e.getMessage();
+        return done();
+      }
+      tiles = s.length;
+
+      try {
+        //Solvers keep state between solves, so each board gets its own
+        Solver solver = Threes.newSolver(s, settings);
+        runtime = System.nanoTime();
+        Board bs = solver.solve(new Board(bt));
+        runtime = System.nanoTime() - runtime;
+        score = bs.score();
+        moves = bs.pathLength();
+
+        File out = new File(outDir, "out-" + file.getName());
+        try (PrintWriter w = new PrintWriter(out, "UTF-8")) {
+          Threes.writeResult(w, Threes.summarise(bs, s.length, runtime), bs);
+        }
+      } catch (IOException | RuntimeException e) {
+        result = "failed: " + e;
+      }
+      return done();
+    }
+
+    private Job done() {
+      System.out.printf("%s: %d (%d/%d moves, %.2f s) %s\n", file.getName(),
+                        score, moves, tiles, runtime / 1000000000.0, result);
+      return this;
+    }
+
+    /**
+     * @return The summary line for this board
+     */
+    public String csv() {
+      return String.format("%s,%d,%d,%d,%.3f,%s", quote(file.getName()),
+                           score, moves, tiles, runtime / 1000000000.0,
+                           quote(result));
+    }
+  }
+
+  /**
+   * Quotes a CSV field, if it needs it.
+   */
+  static String quote(String field) {
+    if (field.indexOf(',') < 0 && field.indexOf('"') < 0) {
+      return field;
+    }
+    return '"' + field.replace("\"", "\"\"") + '"';
+  }
+}
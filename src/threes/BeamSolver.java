@@ -0,0 +1,155 @@
+package threes;
+
+import java.util.*;
+import java.util.concurrent.*;
+import threes.Board.Direction;
+import static threes.Threes.log_info;
+
+/**
+ * 'Solves' the game using a beam search.
+ * The beam holds the best boards that have made the same number of moves.
+ * Each step, every board in the beam makes every possible move, then the
+ * best (distinct) boards by the heuristic evaluation are kept as the next
+ * beam. The time and memory taken per move only depend on the beam width.
+ * @author Jeremy Tan, 20933708
+ */
+public class BeamSolver implements Solver {
+  private static final int DEFAULT_WIDTH = 1000;
+  /**
+   * Boards to expand per task. Fixed, so that the result doesn't depend
+   * on the number of threads.
+   */
+  private static final int CHUNK_SIZE = 32;
+  /** Moves between progress reports */
+  private static final int LOG_INTERVAL = 500;
+  private static final int[] factors = {18,2,2,9}; //The best all-rounder
+  private static final Direction[] directions = {
+    Direction.LEFT, Direction.UP, Direction.RIGHT, Direction.DOWN
+  };
+
+  private final int[] tileSequence;
+  private final int nThreads, width;
+  private final Telemetry telemetry = Telemetry.create();
+
+  public BeamSolver(int[] s, boolean singleThreaded, int width) {
+    this.tileSequence = new int[s.length];
+    System.arraycopy(s, 0, tileSequence, 0, s.length);
+    this.nThreads = (singleThreaded || SearchPool.THREAD_COUNT == 1) ?
+                    1 : SearchPool.THREAD_COUNT;
+    this.width = width < 1 ? DEFAULT_WIDTH : width;
+
+    log_info("Beam width: %d", this.width);
+    log_info("No. of threads to be used: %d", nThreads);
+  }
+
+  public BeamSolver(int[] s) {
+    this(s, true, -1);
+  }
+
+  @Override
+  public Telemetry telemetry() {
+    return telemetry;
+  }
+
+  /**
+   * Solves the board, one move at a time.
+   * @param b The board to be solved
+   * @return The best finished board
+   */
+  @Override
+  public Board solve(Board b) {
+    ExecutorService pool = nThreads > 1 ? SearchPool.get() : null;
+    Board best = null;
+    Board[] beam = {b};
+    telemetry.reset();
+
+    try {
+      while (beam.length > 0) {
+        long time = System.nanoTime();
+        List<Expand> tasks = new ArrayList<>();
+        for (int i = 0; i < beam.length; i += CHUNK_SIZE) {
+          tasks.add(new Expand(beam, i, Math.min(i + CHUNK_SIZE, beam.length)));
+        }
+
+        if (pool != null) {
+          for (Future<Expand> f : pool.invokeAll(tasks)) {
+            f.get();
+          }
+        } else {
+          for (Expand t : tasks) {
+            t.call();
+          }
+        }
+
+        //Merged in a fixed order, so that ties go the same way every time
+        LimitedQueue next = new LimitedQueue(width);
+        for (Expand t : tasks) {
+          next.addAll(t.children);
+          telemetry.search(t.expanded, t.children_made, t.children_made,
+                           t.children.trimmed());
+          if (t.best != null && (best == null || t.best.score() > best.score())) {
+            best = t.best;
+          }
+        }
+
+        telemetry.search(0, 0, 0, next.trimmed());
+        beam = new Board[next.size()];
+        for (int i = 0; i < beam.length; i++) {
+          beam[i] = next.pollLast();
+        }
+        telemetry.move(System.nanoTime() - time);
+        if (beam.length > 0 && beam[0].nMoves() % LOG_INTERVAL == 0) {
+          log_info("Move %d: %d boards, best %d", beam[0].nMoves(),
+                   beam.length, best == null ? 0 : best.score());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+
+    return best == null ? b : best;
+  }
+
+  /**
+   * Makes every possible move from part of the beam. Keeps the best
+   * unfinished boards (at most the beam width of them), and the best
+   * finished board by score.
+   */
+  private class Expand implements Callable<Expand> {
+    private final Board[] beam;
+    private final int from, to;
+    private final LimitedQueue children = new LimitedQueue(width);
+    private Board best;
+    private long expanded, children_made;
+
+    public Expand(Board[] beam, int from, int to) {
+      this.beam = beam;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public Expand call() {
+      for (int i = from; i < to; i++) {
+        expanded++;
+        for (Direction d : directions) {
+          Board n = new Board(beam[i]);
+          children_made++;
+          if (!n.move(tileSequence, d)) {
+            continue;
+          } else if (n.finished()) {
+            if (best == null || n.score() > best.score()) {
+              best = n;
+            }
+          } else {
+            //All the same number of moves, so the evaluation is enough
+            children.add(n, n.evaluate(factors));
+          }
+        }
+      }
+      return this;
+    }
+  }
+}
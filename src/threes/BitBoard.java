@@ -0,0 +1,565 @@
+package threes;
+
+/**
+ * Packed representation of a board.
+ * Each cell holds a tile 'code' instead of the tile value:
+ * 0, 1 and 2 map to themselves, and 3*2^k maps to k + 3.
+ * Codes are ordered the same way as the tile values, so comparisons can
+ * be done directly on the codes.
+ *
+ * A board is split into two planes. The low 4 bits of every code are
+ * stored in a single long, in row-major order with cell 0 in the lowest
+ * nibble. The rest of each code (2 bits per cell, in the same order) is
+ * stored in an int, the high plane, which is 0 unless a tile is at least
+ * 3*2^13. Moves, scores and features of boards whose codes all fit in a
+ * nibble are done with per-row lookup tables; the others (see narrow)
+ * are worked out cell by cell on 'wide' rows, which hold a full code in
+ * each 6 bits.
+ * @author Jeremy Tan, 20933708
+ */
+public final class BitBoard {
+  public static final int CELL_BITS = 4;
+  public static final int CELL_MASK = (1 << CELL_BITS) - 1;
+  /** Bits per cell in the high plane */
+  public static final int HIGH_BITS = 2;
+  public static final int HIGH_MASK = (1 << HIGH_BITS) - 1;
+  /** Bits per cell in a wide row */
+  public static final int WIDE_BITS = CELL_BITS + HIGH_BITS;
+  public static final int WIDE_MASK = (1 << WIDE_BITS) - 1;
+  /** 
+   * The largest tile code. Its tile (3*2^29) is the largest one that
+   * fits in an int, so two of them can't be combined.
+   */
+  public static final int MAX_CODE = 32;
+  /** The largest tile value that can be represented */
+  public static final int MAX_TILE = 3 << (MAX_CODE - 3);
+
+  /** Mask of a single packed row (4 cells) */
+  public static final int ROW_MASK = 0xFFFF;
+  public static final int ROW_BITS = 16;
+
+  /** Mask of the high bits of a single row (4 cells) */
+  private static final int ROW_HIGH_MASK = 0xFF;
+  private static final int ROW_HIGH_BITS = 8;
+  private static final long NIBBLE_LSB = 0x1111111111111111L;
+  /** The lowest bit of every cell that has a cell to its right */
+  private static final long NOT_LAST_LSB = 0x0111011101110111L;
+
+  /**
+   * The result of shifting every possible packed row towards nibble 0
+   * (i.e left for a row, up for a transposed column).
+   * A row was shifted iff its entry differs from the input row.
+   * Rows that would combine two 15's have no valid entry, as the result
+   * doesn't fit in a nibble; they are never looked up (see narrow).
+   */
+  private static final char[] row_front = new char[ROW_MASK + 1];
+  /** As for row_front, but shifted towards nibble 3 */
+  private static final char[] row_back = new char[ROW_MASK + 1];
+  /** Bit 0: row can be shifted towards nibble 0, bit 1: towards nibble 3 */
+  private static final byte[] row_movable = new byte[ROW_MASK + 1];
+  /** Sum of the tile scores of every possible packed row */
+  private static final int[] row_score = new int[ROW_MASK + 1];
+  static {
+    for (int r = 0; r <= ROW_MASK; r++) {
+      int w = widen(r), front = shift_wide(w), back = shift_wide_back(w);
+      row_front[r] = (char)narrow_row(front);
+      row_back[r] = (char)narrow_row(back);
+      row_movable[r] = (byte)((front != w ? 1 : 0) | (back != w ? 2 : 0));
+      row_score[r] = score_wide(w);
+    }
+  }
+
+  private BitBoard() {}
+
+  /**
+   * Converts a packed row into a wide row.
+   * @param r The packed row (with no high bits)
+   * @return The wide row
+   */
+  private static int widen(int r) {
+    int w = 0;
+    for (int j = 0; j < Board.BOARD_WIDTH; j++) {
+      w |= get(r, j) << (j * WIDE_BITS);
+    }
+    return w;
+  }
+
+  /**
+   * The low plane of a wide row.
+   * @param w The wide row
+   * @return The packed row
+   */
+  private static int narrow_row(int w) {
+    int r = 0;
+    for (int j = 0; j < Board.BOARD_WIDTH; j++) {
+      r |= (wide_get(w, j) & CELL_MASK) << (j * CELL_BITS);
+    }
+    return r;
+  }
+
+  /**
+   * @param w The wide row
+   * @param j The index of the cell in the row
+   * @return The code of the cell
+   */
+  public static int wide_get(int w, int j) {
+    return (w >>> (j * WIDE_BITS)) & WIDE_MASK;
+  }
+
+  private static int wide_set(int w, int j, int c) {
+    int shift = j * WIDE_BITS;
+    return (w & ~(WIDE_MASK << shift)) | (c << shift);
+  }
+
+  /**
+   * Reverses the cell order of a wide row.
+   * @param w The wide row
+   * @return The reversed row
+   */
+  private static int reverse_wide(int w) {
+    int r = 0;
+    for (int j = 0; j < Board.BOARD_WIDTH; j++) {
+      r = wide_set(r, Board.BOARD_WIDTH - 1 - j, wide_get(w, j));
+    }
+    return r;
+  }
+
+  /**
+   * Shifts a single wide row towards cell 0, the same way that the
+   * original per-cell move did: the first pair that can be shifted is
+   * combined and everything behind it moves up by one.
+   * @param w The wide row
+   * @return The shifted row
+   */
+  private static int shift_wide(int w) {
+    for (int j = 1; j < Board.BOARD_WIDTH; j++) {
+      int cv = wide_get(w, j), pv = wide_get(w, j - 1);
+      if (shift_valid(cv, pv)) {
+        int n = wide_set(w, j - 1, combine(cv, pv));
+        for (int k = j + 1; k < Board.BOARD_WIDTH; k++) {
+          n = wide_set(n, k - 1, wide_get(w, k));
+        }
+        return wide_set(n, Board.BOARD_WIDTH - 1, 0);
+      }
+    }
+    return w;
+  }
+
+  /** As for shift_wide, but towards cell 3 */
+  private static int shift_wide_back(int w) {
+    return reverse_wide(shift_wide(reverse_wide(w)));
+  }
+
+  /**
+   * @param w The wide row
+   * @return The sum of the tile scores of the row
+   */
+  private static int score_wide(int w) {
+    int score = 0;
+    for (int j = 0; j < Board.BOARD_WIDTH; j++) {
+      score += Board.tile_score_of(decode(wide_get(w, j)));
+    }
+    return score;
+  }
+
+  /**
+   * Reverses the cell order of a packed row.
+   * @param r The packed row
+   * @return The reversed row
+   */
+  public static int reverse_row(int r) {
+    return ((r & 0xF) << 12) | ((r & 0xF0) << 4) |
+           ((r >>> 4) & 0xF0) | (r >>> 12);
+  }
+
+  /**
+   * Transposes the board, so that columns become rows.
+   * @param b The packed board
+   * @return The transposed board
+   */
+  public static long transpose(long b) {
+    long a1 = b & 0xF0F00F0FF0F00F0FL;
+    long a2 = b & 0x0000F0F00000F0F0L;
+    long a3 = b & 0x0F0F00000F0F0000L;
+    long a = a1 | (a2 << 12) | (a3 >>> 12);
+    long b1 = a & 0xFF00FF0000FF00FFL;
+    long b2 = a & 0x00FF00FF00000000L;
+    long b3 = a & 0x00000000FF00FF00L;
+    return b1 | (b2 >>> 24) | (b3 << 24);
+  }
+
+  /**
+   * Transposes the high plane of a board, as for transpose.
+   * @param h The high plane
+   * @return The transposed high plane
+   */
+  public static int transpose_high(int h) {
+    int t = 0;
+    for (int i = 0; i < Board.BOARD_WIDTH; i++) {
+      for (int j = 0; j < Board.BOARD_WIDTH; j++) {
+        t |= ((h >>> ((i * Board.BOARD_WIDTH + j) * HIGH_BITS)) & HIGH_MASK) <<
+             ((j * Board.BOARD_WIDTH + i) * HIGH_BITS);
+      }
+    }
+    return t;
+  }
+
+  public static int row(long b, int i) {
+    return (int)(b >>> (i * ROW_BITS)) & ROW_MASK;
+  }
+
+  /**
+   * @param h The high plane
+   * @param i The index of the row
+   * @return The high bits of the row; zero iff it has no code over 15
+   */
+  public static int row_high(int h, int i) {
+    return (h >>> (i * ROW_HIGH_BITS)) & ROW_HIGH_MASK;
+  }
+
+  /**
+   * @param b The low plane
+   * @param h The high plane
+   * @param i The index of the row
+   * @return The row as a wide row
+   */
+  public static int wide_row(long b, int h, int i) {
+    int r = row(b, i), rh = row_high(h, i), w = 0;
+    for (int j = 0; j < Board.BOARD_WIDTH; j++) {
+      int c = ((r >>> (j * CELL_BITS)) & CELL_MASK) |
+              (((rh >>> (j * HIGH_BITS)) & HIGH_MASK) << CELL_BITS);
+      w |= c << (j * WIDE_BITS);
+    }
+    return w;
+  }
+
+  /**
+   * Can the board be moved with the lookup tables? That is, does every
+   * cell fit in a nibble, and are there no two 15's that could make a 16?
+   * @param b The low plane
+   * @param h The high plane
+   * @return true iff there are no codes over 15, and no adjacent 15's
+   */
+  public static boolean narrow(long b, int h) {
+    if (h != 0) {
+      return false;
+    }
+    long x = b & (b >>> 1) & (b >>> 2) & (b >>> 3) & NIBBLE_LSB; //The 15's
+    return ((x & (x >>> CELL_BITS) & NOT_LAST_LSB) | (x & (x >>> ROW_BITS))) == 0;
+  }
+
+  /**
+   * Performs a move on a packed board.
+   * Each row (or column, by transposing) is shifted with a single table
+   * lookup. The new tile goes into the shifted row whose cells, read from
+   * the edge it is inserted at, are lexicographically smallest. As every
+   * shifted row has an empty back cell, that is just the smallest packed
+   * row when read with the back cell as the most significant nibble. Ties
+   * are broken the same way as the original insert mask did.
+   * @param b The low plane
+   * @param h The high plane
+   * @param d The direction to move in
+   * @param c The code of the tile to insert
+   * @return The low plane of the new board; see move_high for its high
+   *         plane. Both planes are unchanged iff no move was possible.
+   */
+  public static long move(long b, int h, Board.Direction d, int c) {
+    if (c <= CELL_MASK && narrow(b, h)) {
+      return move(b, d, c);
+    }
+    return move_wide(b, h, d, c, false);
+  }
+
+  /**
+   * As for move, but returns the high plane of the new board.
+   */
+  public static int move_high(long b, int h, Board.Direction d, int c) {
+    if (c <= CELL_MASK && narrow(b, h)) {
+      return 0;
+    }
+    return (int)move_wide(b, h, d, c, true);
+  }
+
+  /**
+   * A move with the lookup tables, for a board where narrow holds.
+   */
+  private static long move(long b, Board.Direction d, int c) {
+    boolean front, transposed, tie_high;
+    switch (d) {
+      case LEFT: front = true; transposed = false; tie_high = true; break;
+      case RIGHT: front = false; transposed = false; tie_high = false; break;
+      case UP: front = true; transposed = true; tie_high = false; break;
+      case DOWN: front = false; transposed = true; tie_high = true; break;
+      default:
+        throw new IllegalArgumentException("I don't even");
+    }
+
+    long t = transposed ? transpose(b) : b, n = 0;
+    char[] tbl = front ? row_front : row_back;
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < Board.BOARD_WIDTH; i++) {
+      int r = row(t, i), nr = tbl[r];
+      n |= (long)nr << (i * ROW_BITS);
+      if (nr != r) {
+        //Key: the row read from its back edge, then the tie breaker
+        long key = front ? nr : reverse_row(nr);
+        key = (key << 2) | (tie_high ? Board.BOARD_WIDTH - 1 - i : i);
+        best = key < best ? key : best;
+      }
+    }
+
+    if (best == Long.MAX_VALUE) {
+      return b;
+    }
+
+    int i = (int)(best & 3);
+    i = tie_high ? Board.BOARD_WIDTH - 1 - i : i;
+    n = set(n, i * Board.BOARD_WIDTH + (front ? Board.BOARD_WIDTH - 1 : 0), c);
+    return transposed ? transpose(n) : n;
+  }
+
+  /**
+   * A move worked out one wide row at a time, for any board. The rows are
+   * shifted twice (once to find where the new tile goes, and once to build
+   * the result) so that nothing needs to be allocated.
+   * @param high Whether to return the high plane, rather than the low one
+   */
+  private static long move_wide(long b, int h, Board.Direction d, int c,
+                                boolean high) {
+    boolean front, transposed, tie_high;
+    switch (d) {
+      case LEFT: front = true; transposed = false; tie_high = true; break;
+      case RIGHT: front = false; transposed = false; tie_high = false; break;
+      case UP: front = true; transposed = true; tie_high = false; break;
+      case DOWN: front = false; transposed = true; tie_high = true; break;
+      default:
+        throw new IllegalArgumentException("I don't even");
+    }
+
+    long t = transposed ? transpose(b) : b;
+    int th = transposed ? transpose_high(h) : h;
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < Board.BOARD_WIDTH; i++) {
+      int r = wide_row(t, th, i);
+      int nr = front ? shift_wide(r) : shift_wide_back(r);
+      if (nr != r) {
+        long key = front ? nr : reverse_wide(nr);
+        key = (key << 2) | (tie_high ? Board.BOARD_WIDTH - 1 - i : i);
+        best = key < best ? key : best;
+      }
+    }
+
+    if (best == Long.MAX_VALUE) {
+      return high ? h : b;
+    }
+
+    int ins = (int)(best & 3);
+    ins = tie_high ? Board.BOARD_WIDTH - 1 - ins : ins;
+    long n = 0;
+    int nh = 0;
+    for (int i = 0; i < Board.BOARD_WIDTH; i++) {
+      int r = wide_row(t, th, i);
+      int nr = front ? shift_wide(r) : shift_wide_back(r);
+      if (i == ins) {
+        nr = wide_set(nr, front ? Board.BOARD_WIDTH - 1 : 0, c);
+      }
+      for (int j = 0; j < Board.BOARD_WIDTH; j++) {
+        int idx = transposed ? j * Board.BOARD_WIDTH + i : i * Board.BOARD_WIDTH + j;
+        int code = wide_get(nr, j);
+        n |= (long)(code & CELL_MASK) << (idx * CELL_BITS);
+        nh |= (code >>> CELL_BITS) << (idx * HIGH_BITS);
+      }
+    }
+    return high ? nh : n;
+  }
+
+  /**
+   * @param r The packed row (with no high bits)
+   * @return Bit 0: row can be shifted towards nibble 0, bit 1: towards nibble 3
+   */
+  public static int movable_row(int r) {
+    return row_movable[r];
+  }
+
+  /**
+   * @param w The wide row
+   * @return Bit 0: row can be shifted towards cell 0, bit 1: towards cell 3
+   */
+  public static int movable_wide(int w) {
+    return (shift_wide(w) != w ? 1 : 0) | (shift_wide_back(w) != w ? 2 : 0);
+  }
+
+  /**
+   * Converts a tile value into its packed code.
+   * @param v The tile value
+   * @return The tile code
+   */
+  public static int encode(int v) {
+    if (v >= 0 && v < 3) {
+      return v;
+    } else if (representable(v)) {
+      return Integer.numberOfTrailingZeros(v / 3) + 3;
+    }
+    throw new IllegalArgumentException("Unrepresentable tile value: " + v);
+  }
+
+  /**
+   * Converts a packed code back into its tile value.
+   * @param c The tile code
+   * @return The tile value
+   */
+  public static int decode(int c) {
+    return c < 3 ? c : 3 << (c - 3);
+  }
+
+  /**
+   * Can the tile value be stored in a packed board?
+   * @param v The tile value
+   * @return true iff it has a code
+   */
+  public static boolean representable(int v) {
+    return v >= 0 && v < 3 ||
+           (v % 3 == 0 && v <= MAX_TILE && Integer.bitCount(v / 3) == 1);
+  }
+
+  /**
+   * @param b The low plane
+   * @param idx The index of the cell
+   * @return The low 4 bits of the code of the cell
+   */
+  public static int get(long b, int idx) {
+    return (int)(b >>> (idx * CELL_BITS)) & CELL_MASK;
+  }
+
+  /**
+   * @param b The low plane
+   * @param h The high plane
+   * @param idx The index of the cell
+   * @return The code of the cell
+   */
+  public static int get(long b, int h, int idx) {
+    return get(b, idx) | (((h >>> (idx * HIGH_BITS)) & HIGH_MASK) << CELL_BITS);
+  }
+
+  /**
+   * Sets the low 4 bits of the code of a cell.
+   * @param b The low plane
+   * @param idx The index of the cell
+   * @param c The code
+   * @return The new low plane
+   */
+  public static long set(long b, int idx, int c) {
+    int shift = idx * CELL_BITS;
+    return (b & ~((long)CELL_MASK << shift)) | ((long)(c & CELL_MASK) << shift);
+  }
+
+  /**
+   * Sets the high bits of the code of a cell.
+   * @param h The high plane
+   * @param idx The index of the cell
+   * @param c The code
+   * @return The new high plane
+   */
+  public static int set_high(int h, int idx, int c) {
+    int shift = idx * HIGH_BITS;
+    return (h & ~(HIGH_MASK << shift)) | ((c >>> CELL_BITS) << shift);
+  }
+
+  /**
+   * Packs the low plane of a flat board of tile values.
+   * @param board The flat board, of size Board.BOARD_SPACE
+   * @return The low plane
+   */
+  public static long pack(int[] board) {
+    long b = 0;
+    for (int i = 0; i < board.length; i++) {
+      b = set(b, i, encode(board[i]));
+    }
+    return b;
+  }
+
+  /**
+   * Packs the high plane of a flat board of tile values.
+   * @param board The flat board, of size Board.BOARD_SPACE
+   * @return The high plane
+   */
+  public static int pack_high(int[] board) {
+    int h = 0;
+    for (int i = 0; i < board.length; i++) {
+      h = set_high(h, i, encode(board[i]));
+    }
+    return h;
+  }
+
+  /**
+   * Unpacks a board back into a flat array of tile values.
+   * @param b The low plane
+   * @param h The high plane
+   * @return The flat board
+   */
+  public static int[] unpack(long b, int h) {
+    int[] board = new int[Board.BOARD_SPACE];
+    for (int i = 0; i < board.length; i++) {
+      board[i] = decode(get(b, h, i));
+    }
+    return board;
+  }
+
+  /**
+   * Can we perform a shift from one tile to another?
+   * Same as for tile values, except that two tiles of the largest code
+   * can't be combined as the result wouldn't fit in an int.
+   * @param from The code of the tile to be shifted from
+   * @param to The code of the tile to be shifted to
+   * @return If we can perform a shift
+   */
+  public static boolean shift_valid(int from, int to) {
+    return (from != 0 && to == 0) || (from == 1 && to == 2)
+            || (from == 2 && to == 1) ||
+            (from > 2 && from == to && from < MAX_CODE);
+  }
+
+  /**
+   * The code that results from shifting one tile onto another.
+   * Only valid if shift_valid(from, to) holds.
+   * @param from The code of the tile to be shifted from
+   * @param to The code of the tile to be shifted to
+   * @return The code of the combined tile
+   */
+  public static int combine(int from, int to) {
+    return to == 0 ? from : from < 3 ? 3 : from + 1;
+  }
+
+  /**
+   * @param b The low plane
+   * @param h The high plane
+   * @return The board score, as for Board.score()
+   */
+  public static int score(long b, int h) {
+    int score = 0;
+    for (int i = 0; i < Board.BOARD_WIDTH; i++) {
+      score += row_high(h, i) == 0 ? row_score[row(b, i)] :
+                                     score_wide(wide_row(b, h, i));
+    }
+    return score;
+  }
+
+  /**
+   * Counts the number of empty cells
+   * @param b The low plane
+   * @param h The high plane
+   * @return The number of empty cells
+   */
+  public static int zeros(long b, int h) {
+    //Fold each nibble down to its lowest bit: set iff the nibble is non-zero
+    long x = b | (b >>> 1);
+    x |= x >>> 2;
+    x &= NIBBLE_LSB;
+    for (int i = 0; h != 0; i++, h >>>= HIGH_BITS) {
+      if ((h & HIGH_MASK) != 0) {
+        x |= 1L << (i * CELL_BITS);
+      }
+    }
+    return Board.BOARD_SPACE - Long.bitCount(x);
+  }
+}
@@ -1,7 +1,8 @@
 package threes;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Formatter;
 import java.util.List;
 
@@ -15,13 +16,6 @@ import java.util.List;
 public class Board {
   public static final int BOARD_WIDTH = 4;
   public static final int BOARD_SPACE = BOARD_WIDTH * BOARD_WIDTH;
-  private static final char[][] g_trn = {
-    {0,1,2,3,4,5,6,7,8,9,10,11,12,13,14,15}, //Left
-    {0,4,8,12,1,5,9,13,2,6,10,14,3,7,11,15}, //Up
-    {15,14,13,12,11,10,9,8,7,6,5,4,3,2,1,0}, //Right
-    {15,11,7,3,14,10,6,2,13,9,5,1,12,8,4,0} //Down
-  };
-  
   public enum Direction {
     LEFT("L", 'L'),
     RIGHT("R", 'R'),
@@ -62,75 +56,108 @@ public class Board {
     }
   };
   
-  /** The board (flat representation) */
-  private int[] it;
+  /** The board (packed representation, see BitBoard): low and high planes */
+  private long it;
+  private int hi;
+  /** The heuristic features of the board, kept up to date by move() */
+  private long feats;
+  /** Zobrist key of the board and tile sequence position */
+  private long key;
+  /** The last evaluation, and the weights that it was made with */
+  private int eval;
+  private int[] eval_factors;
   /** Which tile number are we up to in the sequence */
   private int c_sequence;
   /** Are we finished? */
   private boolean finished;
   /** The path that we've followed so far */
-  private Move path;
+  private MovePath path;
   
   public Board(int[] board) {
     if (board.length != BOARD_SPACE) {
       throw new IllegalArgumentException("Invalid input board size");
     }
-    it = Arrays.copyOf(board, board.length);
+    it = BitBoard.pack(board);
+    hi = BitBoard.pack_high(board);
+    feats = Features.of(it, hi);
+    key = Zobrist.of(it, hi, c_sequence);
   }
   
   public Board(Board o) {
-    this.it = Arrays.copyOf(o.it, o.it.length);
+    this.it = o.it;
+    this.hi = o.hi;
+    this.feats = o.feats;
+    this.key = o.key;
     this.c_sequence = o.c_sequence;
     this.finished = o.finished;
     this.path = o.path;
   }
   
+  private Board(long it, int hi, long feats, long key, int c_sequence, 
+                boolean finished, MovePath path) {
+    this.it = it;
+    this.hi = hi;
+    this.feats = feats;
+    this.key = key;
+    this.c_sequence = c_sequence;
+    this.finished = finished;
+    this.path = path;
+  }
+  
+  /**
+   * Creates a board that was reached from this one by making some moves,
+   * whose resulting state has already been worked out (see SearchBoard).
+   * @param it The low plane of the packed board
+   * @param hi The high plane of the packed board
+   * @param feats The feature vector of the board
+   * @param key The Zobrist key of the board
+   * @param c_sequence The position in the tile sequence
+   * @param finished Whether the board is finished
+   * @param moves The moves that were made from this board
+   * @param n The number of moves in moves to use
+   * @return The new board
+   */
+  Board descendant(long it, int hi, long feats, long key, int c_sequence,
+                   boolean finished, Direction[] moves, int n) {
+    return new Board(it, hi, feats, key, c_sequence, finished, 
+                     MovePath.append(path, moves, n));
+  }
+  
+  /**
+   * As for descendant above, but with the moves packed 2 bits each,
+   * first move in the lowest bits.
+   */
+  Board descendant(long it, int hi, long feats, long key, int c_sequence,
+                   boolean finished, long moves, int n) {
+    return new Board(it, hi, feats, key, c_sequence, finished, 
+                     MovePath.append(path, moves, n));
+  }
+  
   /**
-   * Can we perform a shift from one tile to another?
-   * @param from The tile to be shifted from
-   * @param to The tile to be shifted to
-   * @return If we can perform a shift
+   * @return The low plane of the packed representation, see BitBoard
    */
-  private static boolean shift_valid(int from, int to) {
-    return (from != 0 && to == 0) || (from == 1 && to == 2)
-            || (from == 2 && to == 1) || (from > 2 && from == to);
+  public long packed() {
+    return it;
   }
   
-  private static boolean is_pow2(int v) {
-    return ((v) != 0) && (((v) & ((v) - 1) ) == 0);
+  /**
+   * @return The high plane of the packed representation, see BitBoard
+   */
+  public int packedHigh() {
+    return hi;
   }
   
   public static boolean valid_tile(int v) {
-    return v >= 0 && v < 3 || (v % 3 == 0 && is_pow2(v/3));
+    return BitBoard.representable(v);
   }
   
   /**
-   * Calculates the 'insert mask' which helps to determine where to insert
-   * the next tile into.
-   * @param seq_rows A bitfield indicating which rows were shifted
-   * @param seq_trn The transformation lookup to be used when searching.
-   * @return A bitfield of shifted rows that have the lowest 
-   *         lexicographical score.
-  */
-  private char insert_mask(char seq_rows, char seq_trn[]) {
-    char i, j;
-    //If seq_rows is a power of 2, then only one row left -> sub into that row immediately.
-    for (i = 0; i < BOARD_WIDTH && !is_pow2(seq_rows); i++) {
-      int min_value = Integer.MAX_VALUE;
-      for (j = 0; j < BOARD_WIDTH; j++) {
-        if ((seq_rows & (1 << j)) != 0) { //Is a row that sequence can be inserted into
-          char idx = seq_trn[i * BOARD_WIDTH + j];
-          if (it[idx] < min_value) {
-            min_value = it[idx];
-            seq_rows &= ~((1 << j) - 1); //All rows previous are out of the running
-          } else if (it[idx] > min_value) {
-            seq_rows ^= 1 << j; //This row is no longer in the running
-          }
-        }
-      }
-    }
-
-    return seq_rows;
+   * A 64-bit Zobrist key of the board, covering both the tiles and the
+   * position in the tile sequence. Boards that are equal have equal keys.
+   * @return The key
+   */
+  public long zobrist() {
+    return key;
   }
   
   public int nMoves() {
@@ -146,6 +173,26 @@ public class Board {
     return path == null ? "" : path.toString();
   }
   
+  /**
+   * The number of moves made to get to this board
+   * @return The length of moves()
+   */
+  public int pathLength() {
+    return path == null ? 0 : path.length();
+  }
+  
+  /**
+   * Writes out the moves made to get to this board, without building
+   * the string first.
+   * @param w Where to write to
+   * @throws IOException On write failure
+   */
+  public void writeMoves(Writer w) throws IOException {
+    if (path != null) {
+      path.writeTo(w);
+    }
+  }
+  
   /**
    * Performs the move in the desired direction.
    * @param s The tile sequence
@@ -153,61 +200,30 @@ public class Board {
    * @return true iff a move occurred.
    */
   public boolean move(int[] s, Direction d) {
-    boolean local_shift = false, insert_last;
-    char seq_rows = 0;
-    char[] trn, seq_trn;
-    
     if (c_sequence >= s.length || finished) {
         finished = true; //May have to move this check to after to match the case of checking if seq_rows is 0.
         return false;
     }
     
-    switch(d) {
-      case LEFT: trn = g_trn[0]; seq_trn = g_trn[3]; insert_last = false; break;
-      case UP: trn = g_trn[1]; seq_trn = g_trn[2]; insert_last = true; break;
-      case RIGHT: trn = g_trn[2]; seq_trn = g_trn[1]; insert_last = false; break;
-      case DOWN: trn = g_trn[3]; seq_trn = g_trn[0]; insert_last = true; break;
-      default:
-        throw new IllegalArgumentException("I don't even");
-    }
-    
-    for (char i = 0; i < BOARD_WIDTH; i++) {
-      for (char j = 1; j < BOARD_WIDTH; j++) {
-        char idx = trn[i * BOARD_WIDTH + j];
-        char pidx = trn[i * BOARD_WIDTH + j - 1];
-        
-        if (local_shift) {
-          it[pidx] = it[idx];
-          it[idx] = 0;
-        } else if (shift_valid(it[idx], it[pidx])) {
-          seq_rows |= (1 << (BOARD_WIDTH - i - 1)); //Include row which shift occurred in
-          local_shift = true;
-          it[pidx] += it[idx];
-          it[idx] = 0;
-        }
-      }
-      local_shift = false;
+    int c = BitBoard.encode(s[c_sequence]);
+    long next = BitBoard.move(it, hi, d, c);
+    int next_hi = BitBoard.move_high(it, hi, d, c);
+    if (next == it && next_hi == hi) { //No rows have been shifted
+      finished = true;
+      return false;
     }
     
-    if (seq_rows == 0) { //If seq_rows == 0, no rows have been shifted
-      //printf("No change!\n");
+    feats = Features.update(feats, it, hi, next, next_hi);
+    key = Zobrist.update(key, it, hi, next, next_hi) ^ 
+          Zobrist.sequence_key(c_sequence) ^ Zobrist.sequence_key(c_sequence + 1);
+    it = next;
+    hi = next_hi;
+    c_sequence++;
+    eval_factors = null; //The cached evaluation is of the old board
+    //Append to the path
+    path = MovePath.append(path, d);
+    if (c_sequence >= s.length || dof() == 0) {
       finished = true;
-      return false;
-    } else {
-      char j = 0;
-      seq_rows = insert_mask(seq_rows, seq_trn);
-      if (insert_last)
-        while (((seq_rows) >>= 1) != 0) j++;
-      else while ((seq_rows & 1) != 1) {
-        seq_rows >>= 1; j++;
-      }
-      
-      it[seq_trn[j]] = s[c_sequence++];
-      //Append to the path
-      path = new Move(path, d);
-      if (c_sequence >= s.length || dof() == 0) {
-        finished = true;
-      }
     }
     return true;
   }
@@ -238,6 +254,10 @@ public class Board {
    * @return 
    */
   public int tile_score(int t) {
+    return tile_score_of(t);
+  }
+  
+  static int tile_score_of(int t) {
     if (t == 1 || t == 2) {
       return 1;
     } else if (t > 2) {
@@ -251,13 +271,9 @@ public class Board {
 
     return 0;
   }
-
+  
   public int score() {
-    int i, score;
-    for (i = 0, score = 0; i < BOARD_SPACE; i++) {
-      score += tile_score(it[i]);
-    }
-    return score;
+    return BitBoard.score(it, hi);
   }
   
   /**
@@ -265,26 +281,30 @@ public class Board {
    * @return The number of directions the board can be moved in
    */
   public int dof() {
-    char can_shift = 0;
-    
-    for (char i = 0; i < BOARD_WIDTH && can_shift != 0xF; i++) {
-      for (char j = 1; j < BOARD_WIDTH; j++) {
-        char idx = (char)(i * BOARD_WIDTH + j);
-        char pidx = (char)(idx - 1);
-        
-        if (shift_valid(it[idx], it[pidx]))
-          can_shift |= 1;
-        if (shift_valid(it[g_trn[1][idx]], it[g_trn[1][pidx]]))
-          can_shift |= 2;
-        if (shift_valid(it[pidx], it[idx]))
-          can_shift |= 4;
-        if (shift_valid(it[g_trn[3][idx]], it[g_trn[3][pidx]]))
-          can_shift |= 8;
-      }
+    return Features.dof(feats);
+  }
+  
+  /**
+   * The heuristic features of this board, see Features.
+   * @return The packed feature vector
+   */
+  public long features() {
+    return feats;
+  }
+  
+  /**
+   * The heuristic evaluation of this board, see Features.evaluate.
+   * The result is cached, so the weights must not be modified while
+   * boards that were evaluated with them are still in use.
+   * @param factors The heuristic weights
+   * @return The evaluation
+   */
+  public int evaluate(int[] factors) {
+    if (factors != eval_factors) {
+      eval = Features.evaluate(feats, factors);
+      eval_factors = factors;
     }
-      
-    return (can_shift & 1) + ((can_shift & 2) >> 1) + 
-           ((can_shift & 4) >> 2) + ((can_shift & 8) >> 3);
+    return eval;
   }
   
   /**
@@ -292,27 +312,7 @@ public class Board {
    * @return Combinable tile count
    */
   public int nCombinable() {
-    int nCombinable = 0;
-    for (char i = 0; i < BOARD_WIDTH; i++) {
-      for (char j = 1; j < BOARD_WIDTH; j++) {
-        int cl = it[i * BOARD_WIDTH + j];
-        int pl = it[i * BOARD_WIDTH + j - 1];
-        int cu = it[g_trn[1][i * BOARD_WIDTH + j]];
-        int pu = it[g_trn[1][i * BOARD_WIDTH + j - 1]];
-        
-        if (cl != 0 && pl != 0) {
-          if (shift_valid(cl,pl) || shift_valid(pl, cl)) {
-            nCombinable++;
-          }
-        }
-        if (cu != 0 && pu != 0) {
-          if (shift_valid(cu, pu) || shift_valid(pu, cu)) {
-            nCombinable++;
-          }
-        }
-      }
-    }
-    return nCombinable;
+    return Features.nCombinable(features());
   }
   
   /**
@@ -329,15 +329,7 @@ public class Board {
    * @return The number of empty tiles
    */
   public int zeros() {
-    int n_z = 0;
-    for (int i = 0; i < BOARD_SPACE; i++)
-      if (it[i] == 0)
-        n_z++;
-    return n_z;
-  }
-  
-  private int sign(int v) {
-    return v < 0 ? -1 : v > 0 ? 1 : 0;
+    return Features.zeros(feats);
   }
   
   /**
@@ -348,45 +340,7 @@ public class Board {
    * @return The checkerboarding factor. A negative number.
    */
   public int checkerboarding3() {
-    int checkerboarding = 0;
-    
-    for (char i = 0; i < BOARD_WIDTH; i++) {
-      int sgnl = elevation(it[g_trn[0][i * BOARD_WIDTH + 1]]) - 
-                 elevation(it[g_trn[0][i * BOARD_WIDTH]]);
-      int sgnd = elevation(it[g_trn[1][i * BOARD_WIDTH + 1]]) - 
-                 elevation(it[g_trn[1][i * BOARD_WIDTH]]);
-      
-      for (char j = 0; j < BOARD_WIDTH - 1; j++){
-        int csgnl = elevation(it[g_trn[0][i * BOARD_WIDTH + j + 1]]) - 
-                    elevation(it[g_trn[0][i * BOARD_WIDTH + j]]);
-        int csgnd = elevation(it[g_trn[1][i * BOARD_WIDTH + j + 1]]) - 
-                    elevation(it[g_trn[1][i * BOARD_WIDTH + j]]);
-        
-        if (csgnl != 0) {
-          if (sign(csgnl) != sign(sgnl)) {
-            checkerboarding += Math.abs(csgnl - sgnl);
-          }
-          sgnl = csgnl;
-        }
-        if (csgnd != 0) {
-          if (sign(csgnd) != sign(sgnd)) {
-            checkerboarding += Math.abs(csgnd - sgnd);
-          }
-          sgnd = csgnd;
-        }
-      }
-    }
-    
-    return -checkerboarding;
-  }
-  
-  /**
-   * Determines the 'elevation' of a tile, in log space.
-   * @param v The tile score
-   * @return The elevation of the tile.
-   */
-  private int elevation(int v) {
-    return (int)((v/3) <= 0 ? 0 : Math.log(v/3) / Math.log(2));
+    return Features.checkerboarding3(features());
   }
   
   /**
@@ -395,75 +349,48 @@ public class Board {
    * @return The board smoothness.
    */
   public int smoothness() {
-    int smoothness = 0;
-    for (int i = 0; i < BOARD_WIDTH - 1; i++) {
-      for (int j = 0; j < BOARD_WIDTH - 1; j++) {
-        int c = it[i * BOARD_WIDTH + j];
-        if (c > 0) {
-          int r = it[i * BOARD_WIDTH + j + 1];
-          int d = it[(i + 1) * BOARD_WIDTH + j];
-          
-          smoothness -= Math.abs(elevation(c) - elevation(r));
-          smoothness -= Math.abs(elevation(c) - elevation(d));
-        }
-      }
-    }
-    return smoothness;
+    return Features.smoothness(features());
   }
   
   @Override
   public boolean equals(Object o) {
     if (o != null && o instanceof Board) {
       Board other = (Board) o;
-      return Arrays.equals(it, other.it) && (c_sequence == other.c_sequence);
+      return it == other.it && hi == other.hi && 
+             (c_sequence == other.c_sequence);
     }
     return false;
   }
 
   @Override
   public int hashCode() {
-    int hash = 3;
-    hash = 61 * hash + Arrays.hashCode(this.it);
-    hash = 61 * hash + this.c_sequence;
-    return hash;
+    return (int)(key ^ (key >>> 32));
   }
   
   @Override
   public String toString() {
+    return render(it, hi, c_sequence);
+  }
+  
+  /**
+   * Renders a board as text, as toString does.
+   * @param it The low plane of the packed board
+   * @param hi The high plane of the packed board
+   * @param c_sequence The position in the tile sequence
+   * @return The text
+   */
+  static String render(long it, int hi, int c_sequence) {
     Formatter f = new Formatter();
     String nl = System.getProperty("line.separator");
     
-    f.format("%d (%d) %s", score(), c_sequence,  nl);
+    f.format("%d (%d) %s", BitBoard.score(it, hi), c_sequence,  nl);
     for (int i = 0; i < BOARD_WIDTH; i++) {
       for (int j = 0; j < BOARD_WIDTH; j++) {
-        f.format("%3d ", it[i*BOARD_WIDTH + j]);
+        f.format("%3d ", BitBoard.decode(BitBoard.get(it, hi, i*BOARD_WIDTH + j)));
       }
       f.format("%s", nl);
     }
     
     return f.toString();
   }
-  
-  private static class Move {
-    private final Move previous;
-    private final char direction;
-    
-    public Move(Move previous, Direction d) {
-      this.previous = previous;
-      this.direction = d.toChar();
-    }
-    
-    @Override
-    public String toString() {
-      StringBuilder sb = new StringBuilder();
-      Move it = this;
-      
-      while (it != null) {
-        sb.append(it.direction);
-        it = it.previous;
-      }
-      sb.reverse();
-      return sb.toString();
-    }
-  }
 }
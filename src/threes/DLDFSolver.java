@@ -16,17 +16,19 @@ public class DLDFSolver implements Solver {
   private static final Direction[] directions = {
     Direction.LEFT, Direction.UP, Direction.RIGHT, Direction.DOWN
   };
-  private static final int THREAD_COUNT;
-  static {
-    int nt = Runtime.getRuntime().availableProcessors();
-    nt = nt <= 1 ? 1 : nt > 4 ? 4 : nt;
-    THREAD_COUNT = nt;
-  }
+  /** 
+   * Subtrees with at most this many moves left are searched sequentially 
+   * by one task, instead of being split further (as for ASSolver's grain).
+   */
+  private static final int GRAIN = Math.max(2, MAX_DEPTH - 4);
   
   private final int[] learning_starts = {18,0,0,0};
   private final int[] tileSequence;
   private final int nThreads;
   private final boolean useBacktracking;
+  /** Solves the last few moves exactly; null if disabled */
+  private final EndgameSolver endgame;
+  private final Telemetry telemetry = Telemetry.create();
   private Board fbest = null;
   private int fbest_score = -1;
   
@@ -40,17 +42,26 @@ public class DLDFSolver implements Solver {
   private final int[] closefactors = {18, 5, 10, 9}; //nc1 559 569 5610 
   private final int[][] choicefactors = {factors, lb3factors, lb3factors2, lb3factors3, lowfactors, lowfactors3};
   private int[] currentfactors = choicefactors[0];
+  /** Each search thread makes its moves in place on its own board */
+  private final ThreadLocal<SearchBoard> searchBoard = new ThreadLocal<SearchBoard>() {
+    @Override protected SearchBoard initialValue() {
+      return new SearchBoard(tileSequence, MAX_DEPTH);
+    }
+  };
   
-  public DLDFSolver(int[] s, int[] learning_startfactors, boolean singleThreaded, boolean useBacktracking) {
+  public DLDFSolver(int[] s, int[] learning_startfactors, boolean singleThreaded, boolean useBacktracking, int endgame_tiles) {
     log_info("Heuristic weights: %s", Arrays.deepToString(choicefactors));
     log_info("Reported number of processors: %d", Runtime.getRuntime().availableProcessors());
-    nThreads = (singleThreaded || THREAD_COUNT == 1) ? 1 : THREAD_COUNT;
+    nThreads = (singleThreaded || SearchPool.THREAD_COUNT == 1) ? 
+               1 : SearchPool.THREAD_COUNT;
     log_info("No. of threads to be used: %d\n", nThreads);
     this.useBacktracking = useBacktracking;
     log_info("Use backtracking?: %s", useBacktracking ? "Yes" : "No");
     
     this.tileSequence = new int[s.length];
     System.arraycopy(s, 0, this.tileSequence, 0, s.length);
+    this.endgame = endgame_tiles == 0 ? null : 
+                   new EndgameSolver(s, endgame_tiles, telemetry);
     
     if (learning_startfactors != null) {
       if (learning_startfactors.length != learning_starts.length) {
@@ -61,25 +72,36 @@ public class DLDFSolver implements Solver {
     }
   }
   
+  /**
+   * For learning: the heuristic is used right to the end.
+   */
+  public DLDFSolver(int[] s, int[] learning_startfactors, boolean singleThreaded, boolean useBacktracking) {
+    this(s, learning_startfactors, singleThreaded, useBacktracking, 0);
+  }
+  
+  public DLDFSolver(int[] s, boolean singleThreaded, boolean useBacktracking, int endgame_tiles) {
+    this(s, null, singleThreaded, useBacktracking, endgame_tiles);
+  }
+  
   public DLDFSolver(int[] s, boolean singleThreaded, boolean useBacktracking) {
-    this(s, null, singleThreaded, useBacktracking);
+    this(s, singleThreaded, useBacktracking, 0);
   }
   
   //Edge case: As we're approaching the end of a sequence, try to maximise score...
   //Possible change to ncombinable: Weight combinables that increase the score significantly
-  private int evaluate(Board b) {
+  private int evaluate(int nMoves, long features) {
     int[] thefactors = currentfactors;
     
     //We are close to the end of the sequence! Use different weights!
-    if (b.nMoves() + MAX_DEPTH * 2 >= tileSequence.length) {
+    if (nMoves + MAX_DEPTH * 2 >= tileSequence.length) {
       //System.err.println(b.nMoves());
       thefactors = closefactors;
     }
-    return ((int)Math.pow(4, b.dof())) + 
-           thefactors[0] * b.zeros() + 
-           thefactors[1] * b.checkerboarding3() + 
-           thefactors[2] * b.smoothness() + 
-           thefactors[3] * b.nCombinable();
+    return Features.evaluate(features, thefactors);
+  }
+  
+  private int evaluate(Board b) {
+    return evaluate(b.nMoves(), b.features());
   }
   
   /**
@@ -97,7 +119,6 @@ public class DLDFSolver implements Solver {
       int[] best = new int[fl.length];
       int best_score = -1;
       Board best_board = null;
-      ExecutorService pool = Executors.newFixedThreadPool(nThreads);
 
       for (int i = learning_starts[0]; i < 19; i++) {
           for (int j = learning_starts[1]; j < 19; j++) {
@@ -106,7 +127,7 @@ public class DLDFSolver implements Solver {
                     fl[0] = i; fl[1] = j;
                     fl[2] = k; fl[3] = l; 
 
-                    Board n = solve_pndfs(b, pool);
+                    Board n = solve_pndfs(b);
                     int score = n.score();
                     if (score > best_score) {
                         System.arraycopy(factors, 0, best, 0, best.length);
@@ -136,46 +157,95 @@ public class DLDFSolver implements Solver {
     for (int v : best)
       System.out.printf("%d ", v);
     System.out.println();
-    
-    pool.shutdown();
   }
   
-  private synchronized void updateBest(Board b) {
-    int score = b.score();
-    if (score > fbest_score) {
+  private void updateBest(Board b) {
+    synchronized (this) {
+      int score = b.score();
+      if (score <= fbest_score) {
+        return;
+      }
       fbest_score = score;
       fbest = b;
     }
+    telemetry.improved(b);
   }
   
-  private Board solve_dfs(Board b, int depthLimit, int depth) {
-    if (depth >= depthLimit) { //Cutoff test
-      return b;
+  /**
+   * Hands the rest of the game over to the endgame solver, once it's
+   * close enough to the end.
+   * @param b The current board
+   * @return true iff the endgame solver took over
+   */
+  private boolean solve_endgame(Board b) {
+    if (endgame == null || !endgame.applies(b)) {
+      return false;
     }
-    
-    Board best = null;
-    int best_score = -1;
-
+    updateBest(endgame.solve(b));
+    return true;
+  }
+  
+  private void updateBest(SearchBoard b) {
+    Board n;
+    synchronized (this) {
+      int score = b.score();
+      if (score <= fbest_score) {
+        return;
+      }
+      fbest_score = score;
+      fbest = n = b.toBoard();
+    }
+    telemetry.improved(n);
+  }
+  
+  /**
+   * Depth-limited depth first search, making moves in place on the
+   * search board. The best board is the first leaf (in search order) with
+   * the highest evaluation, and is only created as a Board when a leaf
+   * beats the current best.
+   * @param b The search board
+   * @param best The best leaf found so far
+   * @param depthLimit The depth limit
+   * @param depth The current depth
+   */
+  private void solve_dfs(SearchBoard b, Best best, int depthLimit, int depth) {
+    best.nodes++;
     for (int i = 0; i < BOARD_WIDTH; i++) {
-      Board next = new Board(b);
-      if (next.move(tileSequence, directions[i])) {
-        Board candidate = solve_dfs(next, depthLimit, depth + 1);
-        if (candidate == null && next.finished()) {
-          candidate = next;
-        }
-        if (candidate != null) {
-          if (candidate.finished()) {
-            updateBest(candidate);
-          } else {
-            int score = evaluate(candidate);
-            if (score > best_score ) {
-              best_score = score;
-              best = candidate;
-            }
+      if (b.make(directions[i])) {
+        if (b.finished()) {
+          updateBest(b);
+        } else if (depth + 1 >= depthLimit) { //Cutoff test
+          int score = evaluate(b.nMoves(), b.features());
+          best.leaves++;
+          if (score > best.score) {
+            best.score = score;
+            best.board = b.toBoard();
+            best.boards++;
           }
+        } else {
+          solve_dfs(b, best, depthLimit, depth + 1);
         }
+        b.unmake();
       }
     }
+  }
+  
+  /**
+   * Searches from a board, on this thread's search board.
+   * @return The best leaf, whose board is null if no leaf could be reached.
+   */
+  private Best solve_dfs(Board b, int depthLimit, int depth) {
+    Best best = new Best();
+    if (depth >= depthLimit) { //Cutoff test
+      best.board = b;
+      best.score = evaluate(b);
+      return best;
+    }
+    
+    SearchBoard sb = searchBoard.get();
+    sb.reset(b);
+    solve_dfs(sb, best, depthLimit, depth);
+    telemetry.search(best.nodes, best.leaves, best.boards, 0);
     return best;
   }
   
@@ -191,7 +261,13 @@ public class DLDFSolver implements Solver {
     fbest = null;
     currentfactors = factors;
     while (b != null && !b.finished()) {
-      b = solve_dfs(b, MAX_DEPTH, 0);
+      if (solve_endgame(b)) {
+        break;
+      }
+      long time = System.nanoTime();
+      Board next = solve_dfs(b, MAX_DEPTH, 0).board;
+      count_moves(b, next, time);
+      b = next;
       if (b != null) {
         log_info(b);
       }
@@ -205,10 +281,9 @@ public class DLDFSolver implements Solver {
    * Multi-threaded depth-limited depth first search, with no backtracking.
    * @param s The tile sequence
    * @param b The board to search
-   * @param pool The thread pool
    * @return The final best board state that it can find.
    */
-  private Board solve_pndfs(Board b, ExecutorService pool) {
+  private Board solve_pndfs(Board b) {
     Board input = b;
     
     fbest_score = -1;
@@ -216,7 +291,13 @@ public class DLDFSolver implements Solver {
     currentfactors = factors;
     
     while (b != null && !b.finished()) {
-      b = solve_pdfs(b, pool);
+      if (solve_endgame(b)) {
+        break;
+      }
+      long time = System.nanoTime();
+      Board next = solve_pdfs(b);
+      count_moves(b, next, time);
+      b = next;
       if (b != null) {
         //log_info(b);
       }
@@ -226,6 +307,21 @@ public class DLDFSolver implements Solver {
     return fbest == null ? input : fbest;
   }
   
+  /**
+   * Counts the moves made from one board to the next (found by one search)
+   * in the telemetry, as sharing the time that the search took.
+   * @param from The board searched from
+   * @param to The board found, or null if the search ended the game (the
+   *           moves to the best game are counted) or found nothing
+   * @param start When the search started (System.nanoTime())
+   */
+  private void count_moves(Board from, Board to, long start) {
+    Board end = to != null ? to : fbest;
+    if (end != null && end.nMoves() > from.nMoves()) {
+      telemetry.move(System.nanoTime() - start, end.nMoves() - from.nMoves());
+    }
+  }
+  
   /**
    * Solves a board game using a depth-limited depth first search.
    * Also makes use of some backtracking to further optimise the result.
@@ -238,14 +334,18 @@ public class DLDFSolver implements Solver {
     Ringbuffer<Board> rb = new Ringbuffer<>(6);
     Board current = b, choke_best = null;
     char fc = 0, foff = 0;
-    //VTEC just kicked in yo
-    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
     
     fbest_score = -1;
     fbest = null;
     while (current != null && !current.finished()) {
+      if (solve_endgame(current)) {
+        break;
+      }
       rb.push(current);
-      current = solve_pdfs(current, pool);
+      long time = System.nanoTime();
+      Board next = solve_pdfs(current);
+      count_moves(current, next, time);
+      current = next;
       
       if (choke_best != null && choke_best != fbest) {
         log_info("Recovery!: [%d:%s] %d(%d) --> %d(%d)",
@@ -288,78 +388,97 @@ public class DLDFSolver implements Solver {
       }
     }
    
-    pool.shutdown();
     return fbest == null ? b : fbest;
   }
   
   /**
-   * Somewhat multi-threaded depth-first search.
-   * Performs a DFS of the subtrees from the current node in parallel.
+   * Multi-threaded depth-first search. The subtrees are split recursively
+   * onto the search pool (see DFSTask), unless there's only one thread.
    * @param s The tile sequence
    * @param b The board to search
-   * @param pool The thread pool in which to submit jobs to.
    * @return The board with the highest evaluation or null if no board can
    *         continue.
    */
-  private Board solve_pdfs(Board b, ExecutorService pool) {
-    List<Future<Board>> rets = new ArrayList<>(BOARD_WIDTH);
-    Board best = null;
-    int best_score = -1;
-    
-    for (Direction d : directions) {
-      Board n = new Board(b);
-      if (n.move(tileSequence, d)) {
-        rets.add(pool.submit(new ParallelDFS(n)));
-      }
-    }
-    
-    for (Future<Board> ret : rets) {
-      try {
-        Board c = ret.get();
-        if (c != null) {
-          int score = evaluate(c);
-          if (score > best_score) {
-            best = c;
-            best_score = score;
-          }
-        }
-      } catch (InterruptedException | ExecutionException e) {
-        System.err.println("Error: " + e.getMessage());
-      }
+  private Board solve_pdfs(Board b) {
+    if (nThreads == 1) {
+      return solve_dfs(b, MAX_DEPTH, 0).board;
     }
-    
-    return best;
+    return SearchPool.get().invoke(new DFSTask(b, 0)).board;
+  }
+
+  @Override
+  public Telemetry telemetry() {
+    return telemetry;
   }
 
   @Override
   public Board solve(Board in) {
+    telemetry.reset();
     if (useBacktracking) {
       return solve_mdfs(in);
     } else {
       if (nThreads == 1) {
         return solve_ldfs(in);
       } else {
-        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-        Board ret = solve_pndfs(in, pool);
-        pool.shutdown();
-        return ret;
+        return solve_pndfs(in);
       }
     }
   }
   
-  private class ParallelDFS implements Callable<Board> {
+  /**
+   * Splits a search into a task per subtree, until the subtrees are small
+   * enough to be searched in one go (see GRAIN). The best leaves of the
+   * subtrees are compared in the order of the moves, so the result is the
+   * same as that of the sequential search.
+   */
+  private class DFSTask extends RecursiveTask<Best> {
+    private static final long serialVersionUID = 1L;
     private final Board input;
+    private final int depth;
     
-    public ParallelDFS(Board b) {
+    public DFSTask(Board b, int depth) {
       this.input = b;
+      this.depth = depth;
     }
     
     @Override
-    public Board call() throws Exception {
-      return solve_dfs(input, MAX_DEPTH, 1);
+    protected Best compute() {
+      if (MAX_DEPTH - depth <= GRAIN) {
+        return solve_dfs(input, MAX_DEPTH, depth);
+      }
+      
+      List<DFSTask> tasks = new ArrayList<>(BOARD_WIDTH);
+      for (Direction d : directions) {
+        Board n = new Board(input);
+        if (n.move(tileSequence, d)) {
+          if (n.finished()) {
+            updateBest(n);
+          } else {
+            tasks.add(new DFSTask(n, depth + 1));
+          }
+        }
+      }
+      invokeAll(tasks);
+      telemetry.search(1, 0, 0, 0);
+      
+      Best best = new Best();
+      for (DFSTask task : tasks) {
+        Best c = task.join();
+        if (c.score > best.score) {
+          best.score = c.score;
+          best.board = c.board;
+        }
+      }
+      return best;
     }
   }
 
+  private static class Best {
+    private Board board;
+    private int score = -1;
+    private long nodes, leaves, boards;
+  }
+
   /**
    * Buffers the previous n moves made. When retrieving from the buffer, the
    * furthest move made is returned and the buffer is cleared.
@@ -0,0 +1,275 @@
+package threes;
+
+import threes.Board.Direction;
+import static threes.Threes.log_info;
+
+/**
+ * Exact solver for the end of the game. Once only a few tiles are left in
+ * the sequence, every line of play can be searched, to find the one with
+ * the highest final score (instead of the best heuristic evaluation).
+ *
+ * The search is a depth first search that keeps the best final score found
+ * so far, and skips any subtree whose upper bound can't beat it (see
+ * bound()). Scores of positions are memoised by Zobrist key, as exact
+ * values or (when their subtree was cut short) upper bounds. Neither
+ * depends on where the search started, so the memo is kept between solves:
+ * a solver that hands off many boards near the end of the same game shares
+ * most of the work.
+ *
+ * Not thread-safe: each searching thread should have its own.
+ * @author Jeremy Tan, 20933708
+ */
+public class EndgameSolver implements Solver {
+  public static final int DEFAULT_TILES = 8;
+  /** 
+   * Memo size, as a power of 2: 13 bytes a slot, so 832KiB per solver. The
+   * boards handed off differ, so most of what solves share is close to the
+   * end, and four times the size only saved 1.5% of the nodes on B1.
+   */
+  private static final int MEMO_BITS = 16;
+  /** Memo slots to look at when probing */
+  private static final int PROBE_LENGTH = 4;
+  /** A move merges at most one pair in each line */
+  private static final int MAX_MERGES = Board.BOARD_WIDTH;
+  private static final int N_CODES = BitBoard.MAX_CODE + 1;
+  private static final Direction[] directions = {
+    Direction.LEFT, Direction.UP, Direction.RIGHT, Direction.DOWN
+  };
+  private static final int NO_MOVE = -1;
+
+  private final int[] tileSequence;
+  private final int maxTiles;
+  /**
+   * tail_codes[r][c]: How many of the last r tiles in the sequence have
+   * code c; tail_score[r]: their total tile score.
+   */
+  private final int[][] tail_codes;
+  private final int[] tail_score;
+  /** Score of a single tile, by code */
+  private final int[] code_score = new int[N_CODES];
+  private final SearchBoard sb;
+  private final int[] counts = new int[N_CODES + 1];
+  private final int[] merges = new int[N_CODES];
+
+  /** The memo */
+  private final long[] m_key = new long[1 << MEMO_BITS];
+  private final int[] m_value = new int[1 << MEMO_BITS];
+  /** Bit 3: in use, bit 2: value is exact, bits 0-1: the best move's index */
+  private final byte[] m_info = new byte[1 << MEMO_BITS];
+  private long nodes;
+  private final Telemetry telemetry;
+
+  /**
+   * @param s The tile sequence
+   * @param maxTiles Only boards with at most this many tiles left in the
+   *                 sequence can be solved
+   * @param parent The telemetry of the solver this finishes games for
+   */
+  public EndgameSolver(int[] s, int maxTiles, Telemetry parent) {
+    this.telemetry = Telemetry.create(parent);
+    this.tileSequence = new int[s.length];
+    System.arraycopy(s, 0, tileSequence, 0, s.length);
+    this.maxTiles = Math.min(maxTiles < 1 ? DEFAULT_TILES : maxTiles, s.length);
+    this.sb = new SearchBoard(tileSequence, this.maxTiles);
+
+    for (int c = 1; c < N_CODES; c++) {
+      code_score[c] = Board.tile_score_of(BitBoard.decode(c));
+    }
+    tail_codes = new int[this.maxTiles + 1][N_CODES];
+    tail_score = new int[this.maxTiles + 1];
+    for (int r = 1; r <= this.maxTiles; r++) {
+      int c = BitBoard.encode(s[s.length - r]);
+      System.arraycopy(tail_codes[r - 1], 0, tail_codes[r], 0, N_CODES);
+      tail_codes[r][c]++;
+      tail_score[r] = tail_score[r - 1] + code_score[c];
+    }
+  }
+
+  public EndgameSolver(int[] s, int maxTiles) {
+    this(s, maxTiles, Telemetry.global());
+  }
+
+  public EndgameSolver(int[] s) {
+    this(s, -1);
+  }
+
+  @Override
+  public Telemetry telemetry() {
+    return telemetry;
+  }
+
+  /**
+   * @param b The board
+   * @return true iff the board is close enough to the end to be solved
+   */
+  public boolean applies(Board b) {
+    return !b.finished() && tileSequence.length - b.nMoves() <= maxTiles;
+  }
+
+  /**
+   * An upper bound on the final score reachable from a board.
+   * Ignoring where the tiles are, the board plus every tile still to come
+   * can at best have all of its pairs merged: 1's with 2's, then equal
+   * tiles, carrying the merged tiles up to the next value. Merging two
+   * tiles adds the score of one of them, and a move makes at most 4 merges,
+   * so only the most valuable of those merges are counted.
+   * @param b The board
+   * @return The bound
+   */
+  private int bound(SearchBoard b) {
+    int r = tileSequence.length - b.nMoves();
+    long it = b.packed();
+    int hi = b.packedHigh();
+    System.arraycopy(tail_codes[r], 0, counts, 0, N_CODES);
+    for (int i = 0; i < Board.BOARD_SPACE; i++) {
+      counts[BitBoard.get(it, hi, i)]++;
+    }
+
+    int ones_twos = Math.min(counts[1], counts[2]);
+    counts[3] += ones_twos;
+    for (int c = 3; c < BitBoard.MAX_CODE; c++) {
+      merges[c] = counts[c] / 2;
+      counts[c + 1] += merges[c];
+    }
+
+    int budget = MAX_MERGES * r;
+    long gain = 0; //Scores of the largest tiles saturate, so this could overflow
+    for (int c = BitBoard.MAX_CODE - 1; c >= 3 && budget > 0; c--) {
+      int m = Math.min(budget, merges[c]);
+      gain += (long)m * code_score[c];
+      budget -= m;
+    }
+    gain += Math.min(budget, ones_twos) * code_score[3];
+    return (int)Math.min(Integer.MAX_VALUE, (long)b.score() + tail_score[r] + gain);
+  }
+
+  private int probe(long key) {
+    int idx = (int)(key ^ (key >>> 32)) & ((1 << MEMO_BITS) - 1);
+    for (int i = 0; i < PROBE_LENGTH; i++) {
+      int slot = (idx + i) & ((1 << MEMO_BITS) - 1);
+      if ((m_info[slot] & 8) != 0 && m_key[slot] == key) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private void store(long key, int value, boolean exact, int move) {
+    int idx = (int)(key ^ (key >>> 32)) & ((1 << MEMO_BITS) - 1);
+    int slot = idx;
+    for (int i = 0; i < PROBE_LENGTH; i++) {
+      int s = (idx + i) & ((1 << MEMO_BITS) - 1);
+      if ((m_info[s] & 8) == 0 || m_key[s] == key) {
+        slot = s;
+        break;
+      }
+    }
+    m_key[slot] = key;
+    m_value[slot] = value;
+    m_info[slot] = (byte)(8 | (exact ? 4 : 0) | (move & 3));
+  }
+
+  /**
+   * Finds the best final score from a board.
+   * @param b The search board
+   * @param alpha The best final score found elsewhere so far
+   * @return The best final score, if it's more than alpha. Otherwise, an
+   *         upper bound on it that is no more than alpha.
+   */
+  private int search(SearchBoard b, int alpha) {
+    nodes++;
+    if (b.finished()) {
+      return b.score();
+    }
+
+    long key = b.zobrist();
+    int slot = probe(key);
+    if (slot >= 0 && ((m_info[slot] & 4) != 0 || m_value[slot] <= alpha)) {
+      return m_value[slot];
+    }
+    int ub = bound(b);
+    if (ub <= alpha) {
+      return ub;
+    }
+
+    int best = -1, move = NO_MOVE;
+    for (int i = 0; i < directions.length; i++) {
+      if (b.make(directions[i])) {
+        int v = search(b, Math.max(alpha, best));
+        b.unmake();
+        if (v > best) {
+          best = v;
+          move = i;
+        }
+      }
+    }
+    if (move == NO_MOVE) { //Stuck, although it wasn't marked as finished
+      best = b.score();
+    }
+    store(key, best, best > alpha, move);
+    return best;
+  }
+
+  /**
+   * Finds the line of play with the highest final score.
+   * @param b The board to be solved. Must have at most maxTiles tiles left
+   *          in the sequence.
+   * @return The finished board at the end of the best line
+   */
+  @Override
+  public Board solve(Board b) {
+    if (!applies(b)) {
+      if (b.finished()) {
+        return b;
+      }
+      throw new IllegalArgumentException("Too many tiles left to solve exactly");
+    }
+    telemetry.reset();
+    return solve(b, -1);
+  }
+
+  /**
+   * Finds the line of play with the highest final score, if it beats a
+   * score that's already been reached. Much cheaper than solve() when it
+   * doesn't, as most of the search is cut short.
+   * @param b The board to be solved. Must be one that applies().
+   * @param target The score to beat
+   * @return The finished board at the end of the best line, or null if its
+   *         score is no more than target
+   */
+  public Board solve(Board b, int target) {
+    nodes = 0;
+    sb.reset(b);
+    if (search(sb, target) <= target) {
+      telemetry.search(nodes, 0, 0, 0);
+      log_info("Endgame: %d tiles, %d nodes, can't beat %d",
+               tileSequence.length - b.nMoves(), nodes, target);
+      return null;
+    }
+
+    Board n = b;
+    while (!n.finished()) {
+      int slot = probe(n.zobrist());
+      if (slot < 0 || (m_info[slot] & 4) == 0) {
+        //Not searched yet (or pushed out of the memo): find the exact value
+        sb.reset(n);
+        search(sb, -1);
+        slot = probe(n.zobrist());
+        if (slot < 0) {
+          break; //Stuck
+        }
+      }
+
+      int move = m_info[slot] & 3;
+      Board next = new Board(n);
+      if (!next.move(tileSequence, directions[move])) {
+        break;
+      }
+      n = next;
+    }
+    telemetry.search(nodes, 0, 0, 0);
+    log_info("Endgame: %d tiles, %d nodes, final score %d",
+             tileSequence.length - b.nMoves(), nodes, n.score());
+    return n;
+  }
+}
@@ -0,0 +1,417 @@
+package threes;
+
+/**
+ * Heuristic features of a packed board, computed from per-row lookup tables.
+ * Every feature that the evaluation uses is a sum over rows and columns,
+ * so each possible packed row gets all of its contributions stored in one
+ * table entry. The full feature vector is then eight lookups: four rows and
+ * the four rows of the transposed board (the columns).
+ *
+ * The entries are laid out so that they can be summed directly:
+ * bits 0-3 hold the combinable pair count, bits 4-12 the checkerboarding,
+ * bits 13-21 the (positive) smoothness, bits 22-25 the number of zeros and
+ * bits 26-28 and 29-31 whether the row can be shifted towards cell 0 and
+ * cell 3 respectively. The fields are wide enough that four rows can be
+ * summed without one spilling into the next, for any tile up to
+ * BitBoard.MAX_TILE. Rows with tiles too large for the table (see
+ * BitBoard) have their entries worked out as they are needed.
+ *
+ * A feature vector holds the sum over the rows in its low 32 bits and the
+ * sum over the columns in its high 32 bits. As it is a plain sum, a move
+ * only needs to replace the entries of the rows and columns it changed.
+ * The zeros field of the rows counts every empty cell but the last one,
+ * which is counted by the columns instead, so that it never has to hold
+ * 16.
+ * @author Jeremy Tan, 20933708
+ */
+public final class Features {
+  private static final int BOARD_WIDTH = Board.BOARD_WIDTH;
+  private static final int COMB_SHIFT = 0, COMB_MASK = 0xF;
+  private static final int CHECKER_SHIFT = 4, CHECKER_MASK = 0x1FF;
+  private static final int SMOOTH_SHIFT = 13, SMOOTH_MASK = 0x1FF;
+  private static final int ZEROS_SHIFT = 22, ZEROS_MASK = 0xF;
+  private static final int FRONT_SHIFT = 26, BACK_SHIFT = 29, MOVABLE_MASK = 0x7;
+  private static final int LAST_CELL = (BOARD_WIDTH - 1) * BitBoard.CELL_BITS;
+  private static final int LAST_WIDE = (BOARD_WIDTH - 1) * BitBoard.WIDE_BITS;
+
+  /**
+   * For each line (the rows, then the columns): the fields of its entry
+   * that count, and what its last cell adds to the zeros if it's empty.
+   * The last row and column don't count towards the smoothness, and the
+   * zeros are counted by the rows, except for the last cell.
+   */
+  private static final int[] line_mask = new int[2 * BOARD_WIDTH];
+  private static final int[] last_zero = new int[2 * BOARD_WIDTH];
+  static {
+    for (int k = 0; k < 2 * BOARD_WIDTH; k++) {
+      boolean column = k >= BOARD_WIDTH, last = k % BOARD_WIDTH == BOARD_WIDTH - 1;
+      line_mask[k] = ~((column ? ZEROS_MASK << ZEROS_SHIFT : 0) |
+                       (last ? SMOOTH_MASK << SMOOTH_SHIFT : 0));
+      last_zero[k] = last ? (column ? 1 : -1) << ZEROS_SHIFT : 0;
+    }
+  }
+
+  private static final int[] row_features = new int[BitBoard.ROW_MASK + 1];
+  static {
+    for (int r = 0; r <= BitBoard.ROW_MASK; r++) {
+      int w = 0;
+      for (int j = 0; j < BOARD_WIDTH; j++) {
+        w |= BitBoard.get(r, j) << (j * BitBoard.WIDE_BITS);
+      }
+      row_features[r] = entry(w, BitBoard.movable_row(r));
+    }
+  }
+
+  /** 
+   * The most adjacent pairs (along rows and columns) that can be formed 
+   * by any n cells of the board, for each n.
+   */
+  private static final int[] max_adjacent = new int[Board.BOARD_SPACE + 1];
+  static {
+    for (int set = 0; set < 1 << Board.BOARD_SPACE; set++) {
+      int pairs = 0;
+      for (int i = 0; i < Board.BOARD_SPACE; i++) {
+        if ((set & (1 << i)) != 0) {
+          if (i % BOARD_WIDTH < BOARD_WIDTH - 1 && (set & (1 << (i + 1))) != 0) {
+            pairs++;
+          }
+          if (i + BOARD_WIDTH < Board.BOARD_SPACE && 
+              (set & (1 << (i + BOARD_WIDTH))) != 0) {
+            pairs++;
+          }
+        }
+      }
+      int n = Integer.bitCount(set);
+      max_adjacent[n] = Math.max(max_adjacent[n], pairs);
+    }
+  }
+
+  private Features() {}
+
+  /**
+   * Determines the 'elevation' of a tile, in log space.
+   * @param c The tile code
+   * @return The elevation of the tile.
+   */
+  public static int elevation(int c) {
+    return c > 3 ? c - 3 : 0;
+  }
+
+  private static int sign(int v) {
+    return v < 0 ? -1 : v > 0 ? 1 : 0;
+  }
+
+  /**
+   * The table entry of a row.
+   * @param w The wide row (see BitBoard)
+   * @param movable Which ways the row can be shifted, as for
+   *                BitBoard.movable_row
+   * @return The entry
+   */
+  private static int entry(int w, int movable) {
+    int zeros = 0;
+    for (int j = 0; j < BOARD_WIDTH; j++) {
+      zeros += BitBoard.wide_get(w, j) == 0 ? 1 : 0;
+    }
+    return (row_combinable(w) << COMB_SHIFT) |
+           (row_checkerboarding(w) << CHECKER_SHIFT) |
+           (row_smoothness(w) << SMOOTH_SHIFT) |
+           (zeros << ZEROS_SHIFT) |
+           ((movable & 1) << FRONT_SHIFT) |
+           ((movable >> 1) << BACK_SHIFT);
+  }
+
+  /**
+   * Number of adjacent pairs in the row that are non-zero and can be
+   * combined with each other.
+   */
+  private static int row_combinable(int w) {
+    int n = 0;
+    for (int j = 1; j < BOARD_WIDTH; j++) {
+      int c = BitBoard.wide_get(w, j), p = BitBoard.wide_get(w, j - 1);
+      if (c != 0 && p != 0) {
+        if (BitBoard.shift_valid(c, p) || BitBoard.shift_valid(p, c)) {
+          n++;
+        }
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Checkerboarding along one row: the elevation difference at each
+   * change of sign. Positive; the board total is negated.
+   */
+  private static int row_checkerboarding(int w) {
+    int checkerboarding = 0;
+    int sgn = elevation(BitBoard.wide_get(w, 1)) - elevation(BitBoard.wide_get(w, 0));
+    for (int j = 0; j < BOARD_WIDTH - 1; j++) {
+      int csgn = elevation(BitBoard.wide_get(w, j + 1)) - 
+                 elevation(BitBoard.wide_get(w, j));
+      if (csgn != 0) {
+        if (sign(csgn) != sign(sgn)) {
+          checkerboarding += Math.abs(csgn - sgn);
+        }
+        sgn = csgn;
+      }
+    }
+    return checkerboarding;
+  }
+
+  /**
+   * Smoothness along one row, towards the next cell only, for every
+   * non-empty cell but the last. Positive; the board total is negated.
+   * Only the first three rows and columns count towards the smoothness.
+   */
+  private static int row_smoothness(int w) {
+    int smoothness = 0;
+    for (int j = 0; j < BOARD_WIDTH - 1; j++) {
+      int c = BitBoard.wide_get(w, j);
+      if (c > 0) {
+        smoothness += Math.abs(elevation(c) - elevation(BitBoard.wide_get(w, j + 1)));
+      }
+    }
+    return smoothness;
+  }
+
+  /**
+   * What a row or column adds to the feature vector.
+   * @param b The low plane of the board (or of its transpose, for columns)
+   * @param h The high plane of the board (or of its transpose)
+   * @param k The index of the row, or BOARD_WIDTH + the index of the column
+   * @return The adjusted table entry
+   */
+  private static int line(long b, int h, int k) {
+    int i = k & (BOARD_WIDTH - 1);
+    if (BitBoard.row_high(h, i) != 0) {
+      return wide_line(BitBoard.wide_row(b, h, i), k);
+    }
+    return line(BitBoard.row(b, i), k);
+  }
+
+  /**
+   * As for line, for a row with no high bits.
+   * @param r The packed row
+   * @param k The index of the row, or BOARD_WIDTH + the index of the column
+   * @return The adjusted table entry
+   */
+  private static int line(int r, int k) {
+    return (row_features[r] & line_mask[k]) + 
+           ((r >>> LAST_CELL) == 0 ? last_zero[k] : 0);
+  }
+
+  /**
+   * As for line, but for a row with tiles too large for the table.
+   */
+  private static int wide_line(int w, int k) {
+    return (entry(w, BitBoard.movable_wide(w)) & line_mask[k]) +
+           ((w >>> LAST_WIDE) == 0 ? last_zero[k] : 0);
+  }
+
+  /**
+   * Computes the whole feature vector of a board.
+   * @param b The low plane of the board
+   * @param h The high plane of the board
+   * @return The feature vector; use the accessors to unpack it.
+   */
+  public static long of(long b, int h) {
+    long t = BitBoard.transpose(b);
+    int rows = 0, cols = 0;
+
+    if (h == 0) {
+      for (int i = 0; i < BOARD_WIDTH; i++) {
+        rows += line(BitBoard.row(b, i), i);
+        cols += line(BitBoard.row(t, i), BOARD_WIDTH + i);
+      }
+    } else {
+      int th = BitBoard.transpose_high(h);
+      for (int i = 0; i < BOARD_WIDTH; i++) {
+        rows += line(b, h, i);
+        cols += line(t, th, BOARD_WIDTH + i);
+      }
+    }
+    return (rows & 0xFFFFFFFFL) | ((long)cols << 32);
+  }
+
+  /**
+   * Updates a feature vector after the board has changed, replacing only
+   * the entries of the rows and columns that differ.
+   * @param f The feature vector of the old board
+   * @param old The low plane of the old board
+   * @param oh The high plane of the old board
+   * @param b The low plane of the new board
+   * @param h The high plane of the new board
+   * @return The feature vector of the new board
+   */
+  public static long update(long f, long old, int oh, long b, int h) {
+    if ((oh | h) != 0) {
+      return update_wide(f, old, oh, b, h);
+    }
+    long d = old ^ b;
+    int rows = (int)f, cols = (int)(f >>> 32);
+
+    for (int i = 0; i < BOARD_WIDTH; i++) {
+      if (BitBoard.row(d, i) != 0) {
+        rows += line(BitBoard.row(b, i), i) - line(BitBoard.row(old, i), i);
+      }
+    }
+
+    long dt = BitBoard.transpose(d);
+    if (dt != 0) {
+      long ot = BitBoard.transpose(old), bt = BitBoard.transpose(b);
+      for (int i = 0; i < BOARD_WIDTH; i++) {
+        if (BitBoard.row(dt, i) != 0) {
+          cols += line(BitBoard.row(bt, i), BOARD_WIDTH + i) - 
+                  line(BitBoard.row(ot, i), BOARD_WIDTH + i);
+        }
+      }
+    }
+    return (rows & 0xFFFFFFFFL) | ((long)cols << 32);
+  }
+
+  /**
+   * As for update, where either board has high bits.
+   */
+  private static long update_wide(long f, long old, int oh, long b, int h) {
+    long d = old ^ b;
+    int dh = oh ^ h;
+    int rows = (int)f, cols = (int)(f >>> 32);
+
+    for (int i = 0; i < BOARD_WIDTH; i++) {
+      if (BitBoard.row(d, i) != 0 || BitBoard.row_high(dh, i) != 0) {
+        rows += line(b, h, i) - line(old, oh, i);
+      }
+    }
+
+    long dt = BitBoard.transpose(d);
+    int dth = BitBoard.transpose_high(dh);
+    if (dt != 0 || dth != 0) {
+      long ot = BitBoard.transpose(old), bt = BitBoard.transpose(b);
+      int oth = BitBoard.transpose_high(oh), bth = BitBoard.transpose_high(h);
+      for (int i = 0; i < BOARD_WIDTH; i++) {
+        if (BitBoard.row(dt, i) != 0 || BitBoard.row_high(dth, i) != 0) {
+          cols += line(bt, bth, BOARD_WIDTH + i) - line(ot, oth, BOARD_WIDTH + i);
+        }
+      }
+    }
+    return (rows & 0xFFFFFFFFL) | ((long)cols << 32);
+  }
+
+  private static int field(int v, int shift, int mask) {
+    return (v >>> shift) & mask;
+  }
+
+  /**
+   * @param f The feature vector
+   * @return A bitfield of the directions the board can be moved in,
+   *         as for BitBoard.movable
+   */
+  public static int movable(long f) {
+    int rows = (int)f, cols = (int)(f >>> 32);
+    return (field(rows, FRONT_SHIFT, MOVABLE_MASK) != 0 ? 1 : 0) |
+           (field(cols, FRONT_SHIFT, MOVABLE_MASK) != 0 ? 2 : 0) |
+           (field(rows, BACK_SHIFT, MOVABLE_MASK) != 0 ? 4 : 0) |
+           (field(cols, BACK_SHIFT, MOVABLE_MASK) != 0 ? 8 : 0);
+  }
+
+  public static int dof(long f) {
+    return Integer.bitCount(movable(f));
+  }
+
+  public static int zeros(long f) {
+    return field((int)f, ZEROS_SHIFT, ZEROS_MASK) +
+           field((int)(f >>> 32), ZEROS_SHIFT, ZEROS_MASK);
+  }
+
+  public static int nCombinable(long f) {
+    return field((int)f, COMB_SHIFT, COMB_MASK) +
+           field((int)(f >>> 32), COMB_SHIFT, COMB_MASK);
+  }
+
+  public static int checkerboarding3(long f) {
+    return -(field((int)f, CHECKER_SHIFT, CHECKER_MASK) +
+             field((int)(f >>> 32), CHECKER_SHIFT, CHECKER_MASK));
+  }
+
+  public static int smoothness(long f) {
+    return -(field((int)f, SMOOTH_SHIFT, SMOOTH_MASK) +
+             field((int)(f >>> 32), SMOOTH_SHIFT, SMOOTH_MASK));
+  }
+
+  /**
+   * The weighted heuristic evaluation that both solvers use.
+   * @param f The feature vector
+   * @param factors The weights for the zeros, checkerboarding,
+   *                smoothness and combinable terms
+   * @return The evaluation
+   */
+  public static int evaluate(long f, int[] factors) {
+    return (1 << (2 * dof(f))) + //4^dof
+           factors[0] * zeros(f) +
+           factors[1] * checkerboarding3(f) +
+           factors[2] * smoothness(f) +
+           factors[3] * nCombinable(f);
+  }
+  
+  /**
+   * An upper bound on evaluate(f, factors) for any board with at most the
+   * given number of empty cells. The degrees of freedom term is at most 4^4,
+   * the checkerboarding and smoothness terms are never positive and only 
+   * adjacent non-empty cells can be combinable.
+   * @param maxZeros The most empty cells that the board could have
+   * @param factors The heuristic weights
+   * @return The bound, or Integer.MAX_VALUE if the weights are such that
+   *         there isn't one.
+   */
+  public static int evaluationBound(int maxZeros, int[] factors) {
+    if (factors[1] < 0 || factors[2] < 0) {
+      return Integer.MAX_VALUE;
+    }
+    maxZeros = Math.max(0, Math.min(maxZeros, Board.BOARD_SPACE - 1));
+    int best = Integer.MIN_VALUE;
+    for (int z = 0; z <= maxZeros; z++) {
+      int comb = factors[3] > 0 ? max_adjacent[Board.BOARD_SPACE - z] : 0;
+      best = Math.max(best, factors[0] * z + factors[3] * comb);
+    }
+    return (1 << (2 * BOARD_WIDTH)) + best;
+  }
+  
+  /**
+   * 1 if a movable count is non-zero, else 0, without branching
+   * (counts are at most 4).
+   */
+  private static int nonzero(int count) {
+    return (count + MOVABLE_MASK) >>> 3;
+  }
+  
+  /**
+   * Batched form of evaluate(long, int[]), over a structure-of-arrays
+   * buffer of feature vectors. The loop body is straight-line integer
+   * arithmetic with no branches or table lookups, so that the JIT can
+   * vectorise it. The results are exactly those of the scalar form.
+   * @param f The feature vectors
+   * @param n The number of feature vectors to evaluate
+   * @param factors The heuristic weights
+   * @param out Where to store the evaluations
+   */
+  public static void evaluate(long[] f, int n, int[] factors, int[] out) {
+    int w0 = factors[0], w1 = factors[1], w2 = factors[2], w3 = factors[3];
+    for (int i = 0; i < n; i++) {
+      int rows = (int)f[i], cols = (int)(f[i] >>> 32);
+      int dof = nonzero((rows >>> FRONT_SHIFT) & MOVABLE_MASK) +
+                nonzero((cols >>> FRONT_SHIFT) & MOVABLE_MASK) +
+                nonzero((rows >>> BACK_SHIFT) & MOVABLE_MASK) +
+                nonzero((cols >>> BACK_SHIFT) & MOVABLE_MASK);
+      int zeros = ((rows >>> ZEROS_SHIFT) & ZEROS_MASK) +
+                  ((cols >>> ZEROS_SHIFT) & ZEROS_MASK);
+      int checker = ((rows >>> CHECKER_SHIFT) & CHECKER_MASK) + 
+                    ((cols >>> CHECKER_SHIFT) & CHECKER_MASK);
+      int smooth = ((rows >>> SMOOTH_SHIFT) & SMOOTH_MASK) + 
+                   ((cols >>> SMOOTH_SHIFT) & SMOOTH_MASK);
+      int comb = ((rows >>> COMB_SHIFT) & COMB_MASK) + 
+                 ((cols >>> COMB_SHIFT) & COMB_MASK);
+      out[i] = (1 << (2 * dof)) + w0 * zeros - w1 * checker - 
+               w2 * smooth + w3 * comb;
+    }
+  }
+}
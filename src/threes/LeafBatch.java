@@ -0,0 +1,96 @@
+package threes;
+
+/**
+ * A buffer of search leaves, stored as a structure of arrays so that they
+ * can be evaluated together (see Features.evaluate(long[], ...)). A leaf
+ * is only turned back into a Board if it is kept.
+ * All leaves in a batch must come from the same search root.
+ * @author Jeremy Tan, 20933708
+ */
+public final class LeafBatch {
+  /** The maximum depth below the root that a leaf can be stored from */
+  public static final int MAX_DEPTH = Long.SIZE / 2;
+  public static final int DEFAULT_CAPACITY = 256;
+  
+  private final long[] boards, feats, keys, moves;
+  private final int[] highs, nMoves, depths, evals;
+  private Board root;
+  private int size;
+  
+  public LeafBatch(int capacity) {
+    boards = new long[capacity];
+    highs = new int[capacity];
+    feats = new long[capacity];
+    keys = new long[capacity];
+    moves = new long[capacity];
+    nMoves = new int[capacity];
+    depths = new int[capacity];
+    evals = new int[capacity];
+  }
+  
+  public LeafBatch() {
+    this(DEFAULT_CAPACITY);
+  }
+  
+  /**
+   * Adds the current position of a search board to the batch.
+   * @param b The search board, which must not be finished
+   * @return true iff the batch is now full
+   */
+  public boolean add(SearchBoard b) {
+    if (b.depth() > MAX_DEPTH) {
+      throw new IllegalArgumentException("Leaf is too deep: " + b.depth());
+    } else if (size > 0 && b.root() != root) {
+      throw new IllegalStateException("Leaf is from a different root");
+    }
+    
+    root = b.root();
+    boards[size] = b.packed();
+    highs[size] = b.packedHigh();
+    feats[size] = b.features();
+    keys[size] = b.zobrist();
+    moves[size] = b.moves();
+    nMoves[size] = b.nMoves();
+    depths[size++] = b.depth();
+    return size == boards.length;
+  }
+  
+  /**
+   * Evaluates every leaf in the batch.
+   * @param factors The heuristic weights
+   */
+  public void evaluate(int[] factors) {
+    Features.evaluate(feats, size, factors, evals);
+  }
+  
+  public int size() {
+    return size;
+  }
+  
+  public void clear() {
+    size = 0;
+    root = null;
+  }
+  
+  public int nMoves(int i) {
+    return nMoves[i];
+  }
+  
+  /**
+   * @param i The index of the leaf
+   * @return Its evaluation, as of the last call to evaluate()
+   */
+  public int evaluation(int i) {
+    return evals[i];
+  }
+  
+  /**
+   * Creates a Board of a leaf.
+   * @param i The index of the leaf
+   * @return The board
+   */
+  public Board toBoard(int i) {
+    return root.descendant(boards[i], highs[i], feats[i], keys[i], nMoves[i], 
+                           false, moves[i], depths[i]);
+  }
+}
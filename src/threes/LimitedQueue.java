@@ -0,0 +1,334 @@
+package threes;
+
+/**
+ * A priority queue of boards that is limited in size. Only the boards with
+ * the highest scores are kept once the size limit is reached.
+ *
+ * It's a min-max heap: the levels of the heap alternate between being
+ * smaller and larger than all of their descendants. That gives O(1) access
+ * to both the best and the worst board, and O(log n) inserts and removals
+ * from either end. Scores are kept as ints alongside the boards, so they are
+ * only computed once per board.
+ *
+ * Boards with the same score are all kept, and the one added first counts
+ * as the better one (as it did when only the first was kept). Boards in the
+ * same state (by Zobrist key) are duplicates, and only the first one added
+ * is kept.
+ * Not thread-safe.
+ * @author Jeremy Tan, 20933708
+ */
+public final class LimitedQueue {
+  private final int sizeLimit;
+  private final Board[] boards;
+  private final int[] scores;
+  /** When each board was added, to break ties between equal scores */
+  private final long[] orders;
+  private final KeySet keys;
+  private long added;
+  private int size;
+  /** Boards dropped because the queue was full */
+  private long trimmed;
+
+  public LimitedQueue(int sizeLimit) {
+    if (sizeLimit < 1) {
+      throw new IllegalArgumentException("Must have a size limit of at least 1");
+    }
+    this.sizeLimit = sizeLimit;
+    this.boards = new Board[sizeLimit];
+    this.scores = new int[sizeLimit];
+    this.orders = new long[sizeLimit];
+    this.keys = new KeySet(sizeLimit);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean isFull() {
+    return size >= sizeLimit;
+  }
+
+  /**
+   * @return The number of boards dropped to make room for better ones
+   */
+  public long trimmed() {
+    return trimmed;
+  }
+
+  /**
+   * Adds a board to the queue. If the queue is full, the worst board is
+   * dropped to make room, unless the new board is no better than it (which
+   * it isn't if their scores are equal, as it was added later).
+   * @param b The board
+   * @param score Its score
+   * @return true iff the board was added
+   */
+  public boolean add(Board b, int score) {
+    if (size >= sizeLimit && score <= scores[0]) {
+      return false;
+    } else if (!keys.add(b.zobrist())) {
+      return false;
+    }
+
+    if (size >= sizeLimit) {
+      remove(0);
+      trimmed++;
+    }
+    boards[size] = b;
+    scores[size] = score;
+    orders[size] = added++;
+    bubble_up(size++);
+    return true;
+  }
+
+  /**
+   * Adds every board in another queue to this one.
+   * @param o The other queue
+   */
+  public void addAll(LimitedQueue o) {
+    for (int i = 0; i < o.size; i++) {
+      add(o.boards[i], o.scores[i]);
+    }
+  }
+
+  /**
+   * @return The board with the lowest score
+   */
+  public Board first() {
+    if (size == 0) {
+      throw new IllegalStateException("Queue is empty");
+    }
+    return boards[0];
+  }
+
+  /**
+   * @return The lowest score in the queue
+   */
+  public int firstScore() {
+    if (size == 0) {
+      throw new IllegalStateException("Queue is empty");
+    }
+    return scores[0];
+  }
+
+  private int last_index() {
+    return size < 3 ? size - 1 : (compare(1, 2) >= 0 ? 1 : 2);
+  }
+
+  /**
+   * @return The board with the highest score
+   */
+  public Board last() {
+    if (size == 0) {
+      throw new IllegalStateException("Queue is empty");
+    }
+    return boards[last_index()];
+  }
+
+  /**
+   * @return The highest score in the queue
+   */
+  public int lastScore() {
+    if (size == 0) {
+      throw new IllegalStateException("Queue is empty");
+    }
+    return scores[last_index()];
+  }
+
+  /**
+   * Removes the board with the highest score.
+   * @return The board, or null if the queue is empty
+   */
+  public Board pollLast() {
+    if (size == 0) {
+      return null;
+    }
+    return remove(last_index());
+  }
+
+  /**
+   * Removes the board with the lowest score.
+   * @return The board, or null if the queue is empty
+   */
+  public Board pollFirst() {
+    if (size == 0) {
+      return null;
+    }
+    return remove(0);
+  }
+
+  /**
+   * Drops the better half of the queue, in place.
+   */
+  public void dropHalf() {
+    int keep = size / 2;
+    while (size > keep) {
+      pollLast();
+    }
+  }
+
+  private Board remove(int i) {
+    Board ret = boards[i];
+    keys.remove(ret.zobrist());
+    size--;
+    boards[i] = boards[size];
+    scores[i] = scores[size];
+    orders[i] = orders[size];
+    boards[size] = null;
+    if (i < size) {
+      trickle_down(i);
+    }
+    return ret;
+  }
+
+  private static boolean is_min_level(int i) {
+    //Level of i is floor(log2(i + 1)); even levels are min levels
+    return (31 - Integer.numberOfLeadingZeros(i + 1)) % 2 == 0;
+  }
+
+  private void swap(int i, int j) {
+    Board b = boards[i];
+    int s = scores[i];
+    long o = orders[i];
+    boards[i] = boards[j];
+    scores[i] = scores[j];
+    orders[i] = orders[j];
+    boards[j] = b;
+    scores[j] = s;
+    orders[j] = o;
+  }
+
+  /**
+   * Compares two boards in the heap: by score, then the earlier added first.
+   * @return &gt; 0 if a is the better board, &lt; 0 if b is, 0 if the same
+   */
+  private int compare(int a, int b) {
+    if (scores[a] != scores[b]) {
+      return scores[a] > scores[b] ? 1 : -1;
+    }
+    return orders[a] < orders[b] ? 1 : orders[a] > orders[b] ? -1 : 0;
+  }
+
+  /**
+   * Is a 'better' than b, on the given kind of level?
+   */
+  private boolean before(int a, int b, boolean min) {
+    int c = compare(a, b);
+    return min ? c < 0 : c > 0;
+  }
+
+  private void bubble_up(int i) {
+    if (i == 0) {
+      return;
+    }
+    int p = (i - 1) / 2;
+    boolean min = is_min_level(i);
+    if (before(p, i, min)) { //In the wrong half of the heap
+      swap(i, p);
+      i = p;
+      min = !min;
+    }
+    //Move up through the grandparents
+    while (i >= 3) {
+      int g = ((i - 1) / 2 - 1) / 2;
+      if (!before(i, g, min)) {
+        break;
+      }
+      swap(i, g);
+      i = g;
+    }
+  }
+
+  private void trickle_down(int i) {
+    boolean min = is_min_level(i);
+    while (2 * i + 1 < size) {
+      //Find the best of the children and grandchildren
+      int m = 2 * i + 1;
+      int end = Math.min(4 * i + 7, size);
+      if (m + 1 < size && before(m + 1, m, min)) {
+        m = m + 1;
+      }
+      for (int j = 4 * i + 3; j < end; j++) {
+        if (before(j, m, min)) {
+          m = j;
+        }
+      }
+
+      if (!before(m, i, min)) {
+        return;
+      }
+      swap(i, m);
+      if (m <= 2 * i + 2) { //Child: that's as far as it goes
+        return;
+      }
+      int p = (m - 1) / 2;
+      if (before(p, m, min)) {
+        swap(m, p);
+      }
+      i = m;
+    }
+  }
+
+  /**
+   * An open-addressed set of Zobrist keys, with linear probing and
+   * backward shift deletion.
+   */
+  private static final class KeySet {
+    private final long[] table;
+    private final boolean[] used;
+    private final int mask;
+
+    public KeySet(int capacity) {
+      int n = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) * 2;
+      table = new long[n];
+      used = new boolean[n];
+      mask = n - 1;
+    }
+
+    private int slot(long key) {
+      key *= 0x9E3779B97F4A7C15L;
+      return (int)(key >>> 32) & mask;
+    }
+
+    public boolean add(long key) {
+      int i = slot(key);
+      while (used[i]) {
+        if (table[i] == key) {
+          return false;
+        }
+        i = (i + 1) & mask;
+      }
+      used[i] = true;
+      table[i] = key;
+      return true;
+    }
+
+    public void remove(long key) {
+      int i = slot(key);
+      while (used[i] && table[i] != key) {
+        i = (i + 1) & mask;
+      }
+      if (!used[i]) {
+        return;
+      }
+      //Shift back any later entries that probed past this slot
+      int j = i;
+      while (true) {
+        j = (j + 1) & mask;
+        if (!used[j]) {
+          break;
+        }
+        int k = slot(table[j]);
+        if ((j > i && (k <= i || k > j)) || (j < i && (k <= i && k > j))) {
+          table[i] = table[j];
+          i = j;
+        }
+      }
+      used[i] = false;
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package threes;
+
+import java.util.*;
+import java.util.concurrent.*;
+import threes.Board.Direction;
+import static threes.Threes.log_info;
+
+/**
+ * 'Solves' the game using Monte Carlo rollouts.
+ * Each move is chosen by playing many short games (rollouts) after each of
+ * the possible moves, with a cheap randomised policy: usually the move with
+ * the best one-ply evaluation, otherwise a random one. As the tile sequence
+ * is known, a rollout is an actual line of play, so the move that starts
+ * the best rollout is made, and that rollout is tried again next move so
+ * that the best line found so far is never lost.
+ *
+ * Each rollout runs on its own thread's SearchBoard and only depends on
+ * its own seed, so the result doesn't depend on the number of threads.
+ * @author Jeremy Tan, 20933708
+ */
+public class MCSolver implements Solver {
+  private static final int DEFAULT_ROLLOUTS = 64;
+  private static final int DEFAULT_HORIZON = 20;
+  /** Rollouts are recorded as packed moves, so they can only be this long */
+  private static final int MAX_HORIZON = LeafBatch.MAX_DEPTH;
+  /** Rollouts per task */
+  private static final int CHUNK_SIZE = 16;
+  /** Chance, out of 256, that the policy makes a random move */
+  private static final int EXPLORE = 64;
+  /** Moves between progress reports */
+  private static final int LOG_INTERVAL = 500;
+  /** Fixed, so that results are reproducible between runs */
+  private static final long SEED = 0x3001L;
+  /** Rollouts that use up the tile sequence beat all others */
+  private static final long COMPLETE = 1L << 40;
+  private static final int[] factors = {18,2,2,9}; //The best all-rounder
+  private static final Direction[] directions = {
+    Direction.LEFT, Direction.UP, Direction.RIGHT, Direction.DOWN
+  };
+  private static final Direction[] by_ordinal = Direction.values();
+
+  private final int[] tileSequence;
+  private final int nThreads, rollouts, horizon;
+  private final Telemetry telemetry = Telemetry.create();
+  /** Each thread plays its rollouts in place on its own board */
+  private final ThreadLocal<SearchBoard> searchBoard = new ThreadLocal<SearchBoard>() {
+    @Override protected SearchBoard initialValue() {
+      return new SearchBoard(tileSequence, horizon);
+    }
+  };
+
+  public MCSolver(int[] s, boolean singleThreaded, int rollouts, int horizon) {
+    this.tileSequence = new int[s.length];
+    System.arraycopy(s, 0, tileSequence, 0, s.length);
+    this.nThreads = (singleThreaded || SearchPool.THREAD_COUNT == 1) ?
+                    1 : SearchPool.THREAD_COUNT;
+    this.rollouts = rollouts < 1 ? DEFAULT_ROLLOUTS : rollouts;
+    this.horizon = horizon < 1 ? DEFAULT_HORIZON : Math.min(horizon, MAX_HORIZON);
+
+    log_info("Rollouts per move: %d", this.rollouts);
+    log_info("Rollout length: %d", this.horizon);
+    log_info("No. of threads to be used: %d", nThreads);
+  }
+
+  public MCSolver(int[] s) {
+    this(s, true, -1, -1);
+  }
+
+  @Override
+  public Telemetry telemetry() {
+    return telemetry;
+  }
+
+  /**
+   * SplitMix64's mixing function.
+   */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * How good the end of a rollout is. Same as the ASSolver cost + heuristic,
+   * except that using up the tile sequence wins outright, by score.
+   */
+  private long value(SearchBoard b) {
+    if (b.nMoves() >= tileSequence.length) {
+      return COMPLETE + b.score();
+    }
+    return b.nMoves() * 6L + b.evaluate(factors);
+  }
+
+  /**
+   * Plays one rollout from the current position of a search board, which
+   * is reset to root first.
+   * @param b The search board
+   * @param root The board to play from
+   * @param line Moves to make before the policy takes over, packed as for
+   *             SearchBoard.moves()
+   * @param n The number of moves in line
+   * @param seed The rollout's seed
+   * @return The value of the rollout. b holds its final position.
+   */
+  private long rollout(SearchBoard b, Board root, long line, int n, long seed) {
+    b.reset(root);
+    for (int i = 0; i < horizon && !b.finished(); i++) {
+      if (i < n) {
+        if (!b.make(by_ordinal[(int)(line >>> (2 * i)) & 3])) {
+          break;
+        }
+        continue;
+      }
+
+      long r = mix(seed += 0x9E3779B97F4A7C15L);
+      Direction move = null;
+      if ((r & 0xFF) < EXPLORE) {
+        //Random move: try from a random start, until one works
+        int start = (int)(r >>> 8) & 3;
+        for (int j = 0; j < directions.length && move == null; j++) {
+          Direction d = directions[(start + j) & 3];
+          if (b.make(d)) {
+            b.unmake();
+            move = d;
+          }
+        }
+      } else {
+        int best = Integer.MIN_VALUE;
+        for (Direction d : directions) {
+          if (b.make(d)) {
+            int e = b.evaluate(factors);
+            b.unmake();
+            if (e > best) {
+              best = e;
+              move = d;
+            }
+          }
+        }
+      }
+      if (move == null) {
+        break;
+      }
+      b.make(move);
+    }
+    return value(b);
+  }
+
+  /**
+   * Solves the board, one move at a time.
+   * @param b The board to be solved
+   * @return The final board
+   */
+  @Override
+  public Board solve(Board b) {
+    ExecutorService pool = nThreads > 1 ? SearchPool.get() : null;
+    Board n = new Board(b);
+    long line = 0; //The best rollout so far, from n
+    int line_length = 0;
+    telemetry.reset();
+
+    try {
+      while (!n.finished()) {
+        long time = System.nanoTime();
+        List<Rollouts> tasks = new ArrayList<>();
+        //The best line from last time, which is still playable
+        if (line_length > 0) {
+          tasks.add(new Rollouts(n, line, line_length, 0, 1));
+        }
+        for (int i = 0; i < directions.length; i++) {
+          Board c = new Board(n);
+          if (c.move(tileSequence, directions[i])) {
+            long first = directions[i].ordinal();
+            for (int j = 0; j < rollouts; j += CHUNK_SIZE) {
+              tasks.add(new Rollouts(n, first, 1,
+                                     i * rollouts + j, Math.min(CHUNK_SIZE, rollouts - j)));
+            }
+          }
+        }
+        if (tasks.isEmpty()) {
+          break;
+        }
+
+        if (pool != null) {
+          for (Future<Rollouts> f : pool.invokeAll(tasks)) {
+            f.get();
+          }
+        } else {
+          for (Rollouts t : tasks) {
+            t.call();
+          }
+        }
+
+        //Ties go to the task that came first
+        Rollouts best = tasks.get(0);
+        for (Rollouts t : tasks) {
+          telemetry.search(t.nodes, t.count, 0, 0);
+          if (t.best_value > best.best_value) {
+            best = t;
+          }
+        }
+        n.move(tileSequence, by_ordinal[(int)best.best_line & 3]);
+        line = best.best_line >>> 2;
+        line_length = best.best_length - 1;
+        telemetry.move(System.nanoTime() - time);
+        if (n.nMoves() % LOG_INTERVAL == 0) {
+          log_info("Move %d: score %d", n.nMoves(), n.score());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    return n;
+  }
+
+  /**
+   * Plays a number of rollouts that start with the same moves, and keeps
+   * the best of them.
+   */
+  private class Rollouts implements Callable<Rollouts> {
+    private final Board root;
+    private final long line;
+    private final int length, first, count;
+    private long best_value = Long.MIN_VALUE, best_line;
+    private int best_length;
+    /** Moves made by the rollouts */
+    private long nodes;
+
+    /**
+     * @param root The board to play from
+     * @param line The moves to start with, packed
+     * @param length The number of moves in line
+     * @param first The number of the first rollout, for its seed
+     * @param count The number of rollouts to play
+     */
+    public Rollouts(Board root, long line, int length, int first, int count) {
+      this.root = root;
+      this.line = line;
+      this.length = length;
+      this.first = first;
+      this.count = count;
+    }
+
+    @Override
+    public Rollouts call() {
+      SearchBoard b = searchBoard.get();
+      for (int i = first; i < first + count; i++) {
+        long seed = mix(SEED ^ mix(root.nMoves() * 0x9E3779B97F4A7C15L + i));
+        long v = rollout(b, root, line, length, seed);
+        nodes += b.depth();
+        if (v > best_value && b.depth() > 0) {
+          best_value = v;
+          best_line = b.moves();
+          best_length = b.depth();
+        }
+      }
+      return this;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package threes;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import threes.Board.Direction;
+
+/**
+ * A persistent path of moves, stored 2 bits per move in chunks of up to
+ * 32 moves. Appending to a path never modifies it: only the last, partly
+ * filled chunk is copied, so sibling boards share every full chunk of
+ * their common history.
+ * @author Jeremy Tan, 20933708
+ */
+public final class MovePath {
+  private static final int CHUNK_SIZE = Long.SIZE / 2;
+  private static final Direction[] g_dir = Direction.values();
+  
+  /** The previous (full) chunk */
+  private final MovePath previous;
+  /** The moves in this chunk, first move in the lowest bits */
+  private final long moves;
+  /** Number of moves in this chunk */
+  private final int count;
+  /** Total number of moves in the path */
+  private final int length;
+  
+  private MovePath(MovePath previous, long moves, int count) {
+    this.previous = previous;
+    this.moves = moves;
+    this.count = count;
+    this.length = (previous == null ? 0 : previous.length) + count;
+  }
+  
+  /**
+   * Appends a move to a path.
+   * @param p The path, or null for the empty path
+   * @param d The move
+   * @return The new path
+   */
+  public static MovePath append(MovePath p, Direction d) {
+    if (p == null || p.count == CHUNK_SIZE) {
+      return new MovePath(p, d.ordinal(), 1);
+    }
+    return new MovePath(p.previous, 
+                        p.moves | ((long)d.ordinal() << (2 * p.count)), 
+                        p.count + 1);
+  }
+  
+  /**
+   * Appends several moves to a path, creating one node per chunk.
+   * @param p The path, or null for the empty path
+   * @param ds The moves
+   * @param n The number of moves in ds to append
+   * @return The new path
+   */
+  public static MovePath append(MovePath p, Direction[] ds, int n) {
+    int i = 0;
+    while (i < n) {
+      MovePath prev;
+      long moves;
+      int count;
+      if (p == null || p.count == CHUNK_SIZE) {
+        prev = p; moves = 0; count = 0;
+      } else {
+        prev = p.previous; moves = p.moves; count = p.count;
+      }
+      for (; i < n && count < CHUNK_SIZE; i++, count++) {
+        moves |= (long)ds[i].ordinal() << (2 * count);
+      }
+      p = new MovePath(prev, moves, count);
+    }
+    return p;
+  }
+  
+  /**
+   * Appends up to 32 moves to a path.
+   * @param p The path, or null for the empty path
+   * @param ds The moves, 2 bits each (the Direction ordinal), first move
+   *           in the lowest bits
+   * @param n The number of moves in ds to append
+   * @return The new path
+   */
+  public static MovePath append(MovePath p, long ds, int n) {
+    while (n > 0) {
+      MovePath prev;
+      long moves;
+      int count;
+      if (p == null || p.count == CHUNK_SIZE) {
+        prev = p; moves = 0; count = 0;
+      } else {
+        prev = p.previous; moves = p.moves; count = p.count;
+      }
+      int k = Math.min(n, CHUNK_SIZE - count);
+      long bits = k == CHUNK_SIZE ? ds : ds & ((1L << (2 * k)) - 1);
+      p = new MovePath(prev, moves | (bits << (2 * count)), count + k);
+      ds = k == CHUNK_SIZE ? 0 : ds >>> (2 * k);
+      n -= k;
+    }
+    return p;
+  }
+  
+  public int length() {
+    return length;
+  }
+  
+  /**
+   * @param i The index of the move
+   * @return The i'th move of the path
+   */
+  public Direction get(int i) {
+    if (i < 0 || i >= length) {
+      throw new IndexOutOfBoundsException("Move " + i + " of " + length);
+    }
+    MovePath p = this;
+    while (i < p.length - p.count) {
+      p = p.previous;
+    }
+    int j = i - (p.length - p.count);
+    return g_dir[(int)(p.moves >>> (2 * j)) & 3];
+  }
+  
+  /**
+   * Writes the moves out, as characters in the set {L,U,R,D}.
+   * @param w Where to write to
+   * @throws IOException On write failure
+   */
+  public void writeTo(Writer w) throws IOException {
+    char[] buf = new char[CHUNK_SIZE];
+    MovePath[] chunks = new MovePath[(length + CHUNK_SIZE - 1) / CHUNK_SIZE];
+    int n = 0;
+    for (MovePath p = this; p != null; p = p.previous) {
+      chunks[n++] = p;
+    }
+    while (n-- > 0) {
+      MovePath p = chunks[n];
+      for (int j = 0; j < p.count; j++) {
+        buf[j] = g_dir[(int)(p.moves >>> (2 * j)) & 3].toChar();
+      }
+      w.write(buf, 0, p.count);
+    }
+  }
+  
+  @Override
+  public String toString() {
+    StringWriter sw = new StringWriter(length);
+    try {
+      writeTo(sw);
+    } catch (IOException e) { //StringWriter doesn't throw
+      throw new IllegalStateException(e);
+    }
+    return sw.toString();
+  }
+}
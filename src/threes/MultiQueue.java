@@ -0,0 +1,198 @@
+package threes;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent, size-limited priority queue of boards with relaxed ordering
+ * (a 'MultiQueue'). The boards are spread over several LimitedQueues, each
+ * with its own lock. A board is added to a random queue. To take the best
+ * board, two random queues are picked and the one whose best board is
+ * better is polled. So a poll usually returns one of the best few boards,
+ * not necessarily the best one, but threads rarely wait on each other.
+ *
+ * Boards are only checked for duplicates within the queue they land in.
+ * @author Jeremy Tan, 20933708
+ */
+public final class MultiQueue {
+  /** Random picks to try before falling back to looking at every queue */
+  private static final int MAX_ATTEMPTS = 8;
+  /** Top score of an empty queue */
+  private static final int EMPTY = Integer.MIN_VALUE;
+
+  private final LimitedQueue[] queues;
+  private final ReentrantLock[] locks;
+  /** Best score in each queue, readable without taking its lock */
+  private final AtomicIntegerArray tops;
+  private final AtomicInteger size = new AtomicInteger();
+
+  /**
+   * @param nQueues The number of queues to spread the boards over
+   * @param sizeLimit The total size limit; each queue gets an equal share
+   */
+  public MultiQueue(int nQueues, int sizeLimit) {
+    if (nQueues < 1) {
+      throw new IllegalArgumentException("Must have at least 1 queue");
+    }
+    int each = Math.max(1, (sizeLimit + nQueues - 1) / nQueues);
+    queues = new LimitedQueue[nQueues];
+    locks = new ReentrantLock[nQueues];
+    tops = new AtomicIntegerArray(nQueues);
+    for (int i = 0; i < nQueues; i++) {
+      queues[i] = new LimitedQueue(each);
+      locks[i] = new ReentrantLock();
+      tops.set(i, EMPTY);
+    }
+  }
+
+  /**
+   * @return The number of boards in the queue. May be slightly out of date
+   *         if other threads are using the queue.
+   */
+  public int size() {
+    return size.get();
+  }
+
+  public boolean isEmpty() {
+    return size.get() == 0;
+  }
+
+  /**
+   * @return The number of boards dropped to make room for better ones.
+   *         Only approximate while other threads are using the queue.
+   */
+  public long trimmed() {
+    long ret = 0;
+    for (LimitedQueue q : queues) {
+      ret += q.trimmed();
+    }
+    return ret;
+  }
+
+  /**
+   * Locks one of the queues, preferring ones that aren't already locked.
+   * @return The index of the locked queue
+   */
+  private int lock_any(Random rnd) {
+    for (int i = 0; i < MAX_ATTEMPTS; i++) {
+      int q = rnd.nextInt(queues.length);
+      if (locks[q].tryLock()) {
+        return q;
+      }
+    }
+    int q = rnd.nextInt(queues.length);
+    locks[q].lock();
+    return q;
+  }
+
+  /**
+   * Updates the cached state of a queue. Must hold its lock.
+   * @param q The index of the queue
+   * @param before The size of the queue before it was changed
+   */
+  private void changed(int q, int before) {
+    LimitedQueue lq = queues[q];
+    tops.set(q, lq.isEmpty() ? EMPTY : lq.lastScore());
+    size.addAndGet(lq.size() - before);
+  }
+
+  /**
+   * Adds a board to one of the queues.
+   * @param b The board
+   * @param score Its score
+   * @param rnd This thread's random number generator
+   */
+  public void add(Board b, int score, Random rnd) {
+    int q = lock_any(rnd);
+    try {
+      int before = queues[q].size();
+      queues[q].add(b, score);
+      changed(q, before);
+    } finally {
+      locks[q].unlock();
+    }
+  }
+
+  /**
+   * Adds every board from a LimitedQueue, all into the same queue.
+   * @param o The boards to add
+   * @param rnd This thread's random number generator
+   */
+  public void addAll(LimitedQueue o, Random rnd) {
+    if (o.isEmpty()) {
+      return;
+    }
+    int q = lock_any(rnd);
+    try {
+      int before = queues[q].size();
+      queues[q].addAll(o);
+      changed(q, before);
+    } finally {
+      locks[q].unlock();
+    }
+  }
+
+  /**
+   * Removes the best board from a queue, if it has one. Must hold its lock.
+   */
+  private Board poll(int q) {
+    int before = queues[q].size();
+    Board ret = queues[q].pollLast();
+    changed(q, before);
+    return ret;
+  }
+
+  /**
+   * Removes one of the best boards: the best of two random queues.
+   * @param rnd This thread's random number generator
+   * @return The board, or null if every queue was empty
+   */
+  public Board pollLast(Random rnd) {
+    for (int i = 0; i < MAX_ATTEMPTS && size.get() > 0; i++) {
+      int a = rnd.nextInt(queues.length), b = rnd.nextInt(queues.length);
+      int q = tops.get(a) >= tops.get(b) ? a : b;
+      if (tops.get(q) != EMPTY && locks[q].tryLock()) {
+        try {
+          Board ret = poll(q);
+          if (ret != null) {
+            return ret;
+          }
+        } finally {
+          locks[q].unlock();
+        }
+      }
+    }
+
+    //Few boards left, or a lot of contention: try everything in turn
+    for (int q = 0; q < queues.length && size.get() > 0; q++) {
+      locks[q].lock();
+      try {
+        Board ret = poll(q);
+        if (ret != null) {
+          return ret;
+        }
+      } finally {
+        locks[q].unlock();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Drops the better half of every queue.
+   */
+  public void dropHalf() {
+    for (int q = 0; q < queues.length; q++) {
+      locks[q].lock();
+      try {
+        int before = queues[q].size();
+        queues[q].dropHalf();
+        changed(q, before);
+      } finally {
+        locks[q].unlock();
+      }
+    }
+  }
+}
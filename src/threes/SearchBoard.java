@@ -0,0 +1,205 @@
+package threes;
+
+import java.util.Arrays;
+import threes.Board.Direction;
+
+/**
+ * A mutable board for allocation-free searching.
+ * Moves are applied in place with make() and reverted with unmake(), which
+ * restores the state saved on an undo stack that is allocated once, up
+ * front. A Board is only created (with toBoard()) for the positions that
+ * the search actually wants to keep.
+ * Not thread-safe: each searching thread should have its own.
+ * @author Jeremy Tan, 20933708
+ */
+public final class SearchBoard {
+  private final int[] s;
+  /** Undo stack: the state before each move made, and the move itself */
+  private final long[] u_it, u_feats, u_key;
+  private final int[] u_hi;
+  private final Direction[] u_dir;
+  /** Move ordering scratch space, BOARD_WIDTH entries for each depth */
+  private final long[] o_keys;
+  private final Direction[] o_dir;
+  /** The moves made since reset, 2 bits each (only the first 32) */
+  private long u_moves;
+  private Board root;
+  private int depth;
+  
+  private long it, feats, key;
+  private int hi, c_sequence;
+  private boolean finished;
+  
+  /**
+   * @param s The tile sequence
+   * @param maxDepth The maximum number of moves that can be made from
+   *                 the root board at any one time
+   */
+  public SearchBoard(int[] s, int maxDepth) {
+    this.s = s;
+    this.u_it = new long[maxDepth];
+    this.u_hi = new int[maxDepth];
+    this.u_feats = new long[maxDepth];
+    this.u_key = new long[maxDepth];
+    this.u_dir = new Direction[maxDepth];
+    this.o_keys = new long[(maxDepth + 1) * Board.BOARD_WIDTH];
+    this.o_dir = new Direction[(maxDepth + 1) * Board.BOARD_WIDTH];
+  }
+  
+  /**
+   * Starts searching from a new root board.
+   * @param b The root board
+   */
+  public void reset(Board b) {
+    root = b;
+    depth = 0;
+    u_moves = 0;
+    it = b.packed();
+    hi = b.packedHigh();
+    feats = b.features();
+    key = b.zobrist();
+    c_sequence = b.nMoves();
+    finished = b.finished();
+  }
+  
+  /**
+   * Performs a move in place, as for Board.move. Unlike Board.move, the
+   * state is left unchanged if no move occurred.
+   * @param d The direction to move in
+   * @return true iff a move occurred, in which case it must be undone
+   *         with unmake().
+   */
+  public boolean make(Direction d) {
+    if (c_sequence >= s.length || finished) {
+      return false;
+    }
+    
+    int c = BitBoard.encode(s[c_sequence]);
+    long next = BitBoard.move(it, hi, d, c);
+    int next_hi = BitBoard.move_high(it, hi, d, c);
+    if (next == it && next_hi == hi) {
+      return false;
+    }
+    
+    u_it[depth] = it;
+    u_hi[depth] = hi;
+    u_feats[depth] = feats;
+    u_key[depth] = key;
+    u_moves |= (long)d.ordinal() << (2 * depth);
+    u_dir[depth++] = d;
+    
+    feats = Features.update(feats, it, hi, next, next_hi);
+    key = Zobrist.update(key, it, hi, next, next_hi) ^ 
+          Zobrist.sequence_key(c_sequence) ^ Zobrist.sequence_key(c_sequence + 1);
+    it = next;
+    hi = next_hi;
+    c_sequence++;
+    finished = c_sequence >= s.length || Features.dof(feats) == 0;
+    return true;
+  }
+  
+  /**
+   * Reverts the last move made with make().
+   */
+  public void unmake() {
+    depth--;
+    u_moves &= ~(3L << (2 * depth));
+    it = u_it[depth];
+    hi = u_hi[depth];
+    feats = u_feats[depth];
+    key = u_key[depth];
+    c_sequence--;
+    finished = false; //We could move from here, so it wasn't finished
+  }
+  
+  /**
+   * Orders the moves from the current position by the evaluation of the
+   * position that they lead to, best first. Ties keep the given order, and
+   * moves that aren't possible are left out. The order is kept until this
+   * is next called at the same depth.
+   * @param dirs The moves, in the order used for ties (at most 4)
+   * @param factors The evaluation factors
+   * @return The number of possible moves; see orderedMove
+   */
+  public int orderMoves(Direction[] dirs, int[] factors) {
+    int base = depth * Board.BOARD_WIDTH, n = 0;
+    for (int i = 0; i < dirs.length; i++) {
+      if (make(dirs[i])) {
+        //Higher evaluation first, then lower index
+        o_keys[base + n++] = ((long)evaluate(factors) << 8) | (dirs.length - 1 - i);
+        unmake();
+      }
+    }
+    Arrays.sort(o_keys, base, base + n);
+    for (int i = 0; i < n; i++) {
+      o_dir[base + i] = dirs[dirs.length - 1 - (int)(o_keys[base + n - 1 - i] & 0xFF)];
+    }
+    return n;
+  }
+  
+  /**
+   * @param i The rank of the move, from 0 (the best)
+   * @return The move, as last ordered by orderMoves at this depth
+   */
+  public Direction orderedMove(int i) {
+    return o_dir[depth * Board.BOARD_WIDTH + i];
+  }
+  
+  /**
+   * Creates a Board of the current position.
+   * @return The board, with its path including the moves made since reset.
+   */
+  public Board toBoard() {
+    return root.descendant(it, hi, feats, key, c_sequence, finished, u_dir, depth);
+  }
+  
+  Board root() {
+    return root;
+  }
+  
+  /**
+   * The moves made since reset, packed as for MovePath: 2 bits per move
+   * (the Direction ordinal), first move in the lowest bits. Only valid
+   * while depth() &le; LeafBatch.MAX_DEPTH.
+   * @return The packed moves
+   */
+  public long moves() {
+    return u_moves;
+  }
+  
+  public int depth() {
+    return depth;
+  }
+  
+  public int nMoves() {
+    return c_sequence;
+  }
+  
+  public boolean finished() {
+    return finished;
+  }
+  
+  public long features() {
+    return feats;
+  }
+  
+  public long zobrist() {
+    return key;
+  }
+  
+  public long packed() {
+    return it;
+  }
+  
+  public int packedHigh() {
+    return hi;
+  }
+  
+  public int score() {
+    return BitBoard.score(it, hi);
+  }
+  
+  public int evaluate(int[] factors) {
+    return Features.evaluate(feats, factors);
+  }
+}
@@ -0,0 +1,32 @@
+package threes;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The fork/join pool that the parallel searches run their tasks on (split
+ * subtrees, beam chunks, rollouts...). There's one for the whole process,
+ * sized to every processor, so that solvers (one per board, in batch and
+ * server modes) share its threads instead of each starting and stopping
+ * their own. The threads are daemons,
+ * and are only started, or kept, while there's work for them.
+ * @author Jeremy Tan, 20933708
+ */
+final class SearchPool {
+  /** The number of threads in the pool */
+  static final int THREAD_COUNT =
+          Math.max(1, Runtime.getRuntime().availableProcessors());
+  private static ForkJoinPool pool;
+
+  private SearchPool() {
+  }
+
+  /**
+   * @return The pool, created when first asked for
+   */
+  static synchronized ForkJoinPool get() {
+    if (pool == null) {
+      pool = new ForkJoinPool(THREAD_COUNT);
+    }
+    return pool;
+  }
+}
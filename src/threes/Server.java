@@ -0,0 +1,271 @@
+package threes;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import static threes.Threes.log_info;
+
+/**
+ * Server mode: keeps the solver running, so that solving a board doesn't
+ * pay for JVM start-up and JIT warm-up every time.
+ *
+ * Listens on a localhost TCP port. Each connection is one request:
+ * <pre>
+ * SOLVE [options]
+ * (an input file: two header lines, the board, a blank line, the sequence)
+ * END
+ * </pre>
+ * The options are the same as on the command line, and are added to the
+ * ones the server was started with. The reply is streamed:
+ * <pre>
+ * OK
+ * BEST score moves   (the best game so far, by solvers that find games
+ *                     while solving, when it gets better)
+ * (what would be written to stdout)
+ * </pre>
+ * The BEST moves are a string of L, U, R and D, as in the output.
+ * or a line with 'ERROR' and a reason, which can also come after 'OK' if
+ * the solve fails.
+ * At most a fixed number of requests are solved at once; a few more wait
+ * in a queue, and any beyond that are turned away. The solvers share the
+ * search pool, and reuse the transposition tables of earlier requests.
+ * @author Jeremy Tan, 20933708
+ */
+public class Server {
+  /** Requests that can wait for a solver before they're turned away */
+  private static final int QUEUE_LENGTH = 32;
+  /** How long to wait for a client to send its request (ms) */
+  private static final int READ_TIMEOUT = 10000;
+  /** Requests have at most this many lines */
+  private static final int MAX_LINES = 100000;
+  /** How often to check for a better game to send (ms) */
+  private static final int BEST_INTERVAL = 100;
+
+  private final String[] args;
+  private final int port, jobs, tt_size;
+  private final ThreadPoolExecutor pool;
+  /**
+   * Runs the solves, so that the request threads are free to send the
+   * BEST lines. A client that is slow to read only holds up its own
+   * request thread, and never a solver.
+   */
+  private final ExecutorService solvers;
+  /** 
+   * Transposition tables (of tt_size) that aren't in use. There are never
+   * more than there are requests being solved at once.
+   */
+  private final ConcurrentLinkedQueue<TranspositionTable> tables = 
+          new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param settings The settings the server was started with
+   * @param args The command line they came from. Request options are added
+   *             to the end of it.
+   */
+  public Server(Threes.Settings settings, String[] args) {
+    this.args = args;
+    this.port = settings.port;
+    this.jobs = settings.jobs();
+    this.tt_size = settings.tt_size < 0 ? ASSolver.DEFAULT_TT_SIZE : settings.tt_size;
+    this.pool = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_LENGTH));
+    this.solvers = Executors.newFixedThreadPool(jobs);
+  }
+
+  /**
+   * Serves requests until the process is killed.
+   * @throws IOException If the port can't be listened on
+   */
+  public void run() throws IOException {
+    try (ServerSocket ss = new ServerSocket(port, QUEUE_LENGTH,
+                                            InetAddress.getLoopbackAddress())) {
+      System.err.printf("Listening on port %d, solving %d at a time\n",
+                        ss.getLocalPort(), jobs);
+      while (true) {
+        Socket socket = ss.accept();
+        try {
+          pool.execute(new Request(socket));
+        } catch (RejectedExecutionException e) {
+          reply_error(socket, "Busy");
+        }
+      }
+    } finally {
+      pool.shutdown();
+      solvers.shutdown();
+    }
+  }
+
+  /**
+   * Keeps a game if it's better than the one kept.
+   */
+  private static void keep_best(AtomicReference<Board> best, Board b) {
+    Board c;
+    do {
+      c = best.get();
+    } while ((c == null || b.score() > c.score()) && !best.compareAndSet(c, b));
+  }
+
+  /**
+   * Sends an error reply, and closes the connection.
+   */
+  private static void reply_error(Socket socket, String reason) {
+    try (PrintWriter w = writer(socket)) {
+      w.println("ERROR " + reason);
+    } catch (IOException e) {
+      log_info("Failed to reply: %s", e.getMessage());
+    }
+  }
+
+  private static PrintWriter writer(Socket socket) throws IOException {
+    return new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+            socket.getOutputStream(), StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * Reads, solves and replies to one request.
+   */
+  private class Request implements Runnable {
+    private final Socket socket;
+
+    public Request(Socket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+      try {
+        socket.setSoTimeout(READ_TIMEOUT);
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.UTF_8));
+        String header = br.readLine();
+        if (header == null || !header.startsWith("SOLVE")) {
+          reply_error(socket, "Expected SOLVE");
+          return;
+        }
+
+        StringBuilder input = new StringBuilder();
+        String c;
+        int lines = 0;
+        while ((c = br.readLine()) != null && !c.equals("END")) {
+          if (++lines > MAX_LINES) {
+            reply_error(socket, "Request too long");
+            return;
+          }
+          input.append(c).append('\n');
+        }
+        solve(header.substring("SOLVE".length()).trim(), input.toString());
+      } catch (IOException e) {
+        log_info("Failed to read request: %s", e.getMessage());
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          //Nothing else to do
+        }
+      }
+    }
+
+    private void solve(String options, String input) throws IOException {
+      String[] extra = options.isEmpty() ? new String[0] : options.split("\\s+");
+      Threes.Settings settings;
+      int[] bt = new int[Board.BOARD_SPACE], s;
+      try {
+        //Nothing that reads or writes files, or starts anything else
+        Threes.Settings own = Threes.parseSettings(extra);
+        if (own.outputFile != null || own.movesFile != null ||
+            own.batchDir != null || own.starting_learnfactors != null ||
+            own.traceFile != null ||
+            own.port != 0 || !own.inputs.isEmpty()) {
+          reply_error(socket, "Option not allowed");
+          return;
+        }
+        String[] all = Arrays.copyOf(args, args.length + extra.length);
+        System.arraycopy(extra, 0, all, args.length, extra.length);
+        settings = Threes.parseSettings(all);
+        s = Threes.parseBoard(new BufferedReader(new StringReader(input)), bt);
+      } catch (IllegalArgumentException | IOException e) {
+        reply_error(socket, e.getMessage());
+        return;
+      }
+
+      //Only tables of the server's size are kept; -H can ask for another
+      int size = settings.tt_size < 0 ? ASSolver.DEFAULT_TT_SIZE : settings.tt_size;
+      TranspositionTable tt = null;
+      if (size == tt_size && size > 0) {
+        tt = tables.poll();
+        if (tt == null) {
+          tt = new TranspositionTable(size);
+        }
+      }
+      
+      try (PrintWriter w = writer(socket)) {
+        w.println("OK");
+        w.flush();
+        long runtime = System.nanoTime();
+        //The solver only records better games; they're sent from here
+        final AtomicReference<Board> latest = new AtomicReference<>();
+        final Board start = new Board(bt);
+        Future<Board> result;
+        try {
+          final Solver solver = Threes.newSolver(s, settings, tt);
+          solver.telemetry().setListener(new Telemetry.Listener() {
+            @Override public void improved(Board b) {
+              keep_best(latest, b);
+            }
+          });
+          result = solvers.submit(new Callable<Board>() {
+            @Override public Board call() {
+              return solver.solve(start);
+            }
+          });
+        } catch (RuntimeException e) {
+          w.println("ERROR Failed: " + e);
+          return;
+        }
+
+        Board bs, sent = null;
+        try {
+          while (true) {
+            try {
+              bs = result.get(BEST_INTERVAL, TimeUnit.MILLISECONDS);
+              break;
+            } catch (TimeoutException e) {
+              Board b = latest.get();
+              if (b != sent) {
+                w.printf("BEST %d %s\n", b.score(), b.moves());
+                w.flush();
+                sent = b;
+              }
+            }
+          }
+        } catch (ExecutionException e) {
+          w.println("ERROR Failed: " + e.getCause());
+          return;
+        } catch (InterruptedException e) {
+          result.cancel(true);
+          tt = null; //It may still be in use
+          Thread.currentThread().interrupt();
+          return;
+        }
+        runtime = System.nanoTime() - runtime;
+        Threes.writeResult(w, Threes.summarise(bs, s.length, runtime), bs);
+        log_info("Solved a board: %d in %.2f ms", bs.score(), runtime / 1000000.0);
+      } finally {
+        if (tt != null) {
+          tables.add(tt);
+        }
+      }
+    }
+  }
+}
@@ -7,4 +7,9 @@ package threes;
  */
 public interface Solver {
   public Board solve(Board in);
+  
+  /**
+   * @return What the solver did in its last solve
+   */
+  public Telemetry telemetry();
 }
@@ -0,0 +1,278 @@
+package threes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import static threes.Threes.log_info;
+
+/**
+ * Sweep mode: solves every board with every combination of a few settings,
+ * in the one JVM, on a shared pool. For each board, it reports the
+ * settings that are on the score-versus-time Pareto frontier: those that
+ * no other settings beat on both score and time.
+ *
+ * The settings to sweep are given as e.g "a=1-8 u=200,300 i=2 q=5000,20000":
+ * the option letter, then a list of values or ranges of values.
+ * Anything not swept comes from the rest of the command line.
+ * A run that fails is reported (and left off the frontier), and the rest
+ * of the sweep carries on.
+ * @author Jeremy Tan, 20933708
+ */
+public class Sweep {
+  private static final String RESULTS_FILE = "sweep.csv";
+  /** The options that can be swept */
+  private static final String OPTIONS = "auiq";
+
+  private final String[] args;
+  private final List<String> inputs;
+  private final String outDir;
+  private final int jobs;
+  /** Every combination of the swept settings, as extra arguments */
+  private final List<String[]> configs = new ArrayList<>();
+
+  /**
+   * @param settings The settings, with the ranges to sweep
+   * @param args The command line they came from. The swept settings are
+   *             added to the end of it.
+   * @throws IllegalArgumentException If the ranges are invalid
+   */
+  public Sweep(Threes.Settings settings, String[] args) {
+    this.args = args;
+    this.inputs = settings.inputs;
+    this.outDir = settings.batchDir;
+    this.jobs = settings.jobs();
+
+    List<List<String>> values = new ArrayList<>();
+    List<Character> options = new ArrayList<>();
+    for (String range : settings.sweep.trim().split("\\s+")) {
+      if (range.length() < 3 || range.charAt(1) != '=' ||
+          OPTIONS.indexOf(range.charAt(0)) < 0) {
+        throw new IllegalArgumentException("Invalid range: " + range);
+      }
+      options.add(range.charAt(0));
+      values.add(parse_values(range.substring(2)));
+    }
+    combine(options, values, 0, new ArrayList<String>());
+  }
+
+  /**
+   * Parses a list of values, such as "1-4,6".
+   */
+  private static List<String> parse_values(String list) {
+    List<String> ret = new ArrayList<>();
+    for (String v : list.split(",")) {
+      int dash = v.indexOf('-', 1);
+      try {
+        if (dash < 0) {
+          ret.add(Integer.toString(Integer.parseInt(v)));
+        } else {
+          int lo = Integer.parseInt(v.substring(0, dash));
+          int hi = Integer.parseInt(v.substring(dash + 1));
+          for (int i = lo; i <= hi; i++) {
+            ret.add(Integer.toString(i));
+          }
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid value: " + v);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Builds every combination of the values, from option i onwards.
+   */
+  private void combine(List<Character> options, List<List<String>> values,
+                       int i, List<String> prefix) {
+    if (i == options.size()) {
+      configs.add(prefix.toArray(new String[prefix.size()]));
+      return;
+    }
+    for (String v : values.get(i)) {
+      List<String> next = new ArrayList<>(prefix);
+      next.add("-" + options.get(i));
+      next.add(v);
+      combine(options, values, i + 1, next);
+    }
+  }
+
+  /**
+   * Solves everything, then reports the frontier for each board.
+   * @throws IOException If the results can't be written
+   */
+  public void run() throws IOException {
+    List<File> boards = Batch.boards(inputs);
+    log_info("Sweep: %d boards, %d settings each, %d at a time",
+             boards.size(), configs.size(), jobs);
+
+    ExecutorService pool = Executors.newFixedThreadPool(jobs);
+    List<Future<Run>> futures = new ArrayList<>();
+    List<Run> runs = new ArrayList<>();
+    try {
+      //Each board's runs are spread out, so the slow settings aren't all
+      //run at the same time
+      for (String[] config : configs) {
+        for (File f : boards) {
+          futures.add(pool.submit(new Run(f, config)));
+        }
+      }
+      for (Future<Run> f : futures) {
+        runs.add(f.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+
+    PrintWriter w = null;
+    if (outDir != null) {
+      File dir = new File(outDir);
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Can't create " + dir);
+      }
+      w = new PrintWriter(new File(dir, RESULTS_FILE), "UTF-8");
+      w.println("board,settings,score,moves,seconds,pareto,result");
+    }
+    try {
+      for (File f : boards) {
+        List<Run> mine = new ArrayList<>(), failed = new ArrayList<>();
+        for (Run r : runs) {
+          if (r.file == f) {
+            (r.failed() ? failed : mine).add(r);
+          }
+        }
+        report(f, mine, failed, w);
+      }
+    } finally {
+      if (w != null) {
+        w.close();
+      }
+    }
+  }
+
+  /**
+   * Prints the Pareto frontier of a board's runs, and writes all of them
+   * to the results file.
+   * @param mine The runs that finished
+   * @param failed The runs that didn't
+   */
+  private void report(File f, List<Run> mine, List<Run> failed, PrintWriter w) {
+    //Fastest first; for the same time, best score first
+    Collections.sort(mine, new Comparator<Run>() {
+      @Override public int compare(Run a, Run b) {
+        if (a.runtime != b.runtime) {
+          return a.runtime < b.runtime ? -1 : 1;
+        }
+        return Integer.compare(b.score, a.score);
+      }
+    });
+    int best = -1;
+    for (Run r : mine) {
+      if (r.score > best) {
+        r.pareto = true;
+        best = r.score;
+      }
+    }
+
+    System.out.printf("%s: %d of %d settings are on the frontier\n",
+                      f.getName(), count_pareto(mine), mine.size());
+    for (Run r : mine) {
+      if (r.pareto) {
+        System.out.printf("  %-32s %9d in %8.2f s (%d moves)\n",
+                          r.settings(), r.score, r.runtime / 1e9, r.moves);
+      }
+    }
+    for (Run r : failed) {
+      System.out.printf("  %-32s %s\n", r.settings(), r.result);
+    }
+    if (w != null) {
+      for (List<Run> list : Arrays.asList(mine, failed)) {
+        for (Run r : list) {
+          w.printf("%s,%s,%d,%d,%.3f,%s,%s\n", Batch.quote(f.getName()), 
+                   r.settings(), r.score, r.moves, r.runtime / 1e9, 
+                   r.pareto ? "yes" : "no", Batch.quote(r.result));
+        }
+      }
+    }
+  }
+
+  private static int count_pareto(List<Run> runs) {
+    int n = 0;
+    for (Run r : runs) {
+      n += r.pareto ? 1 : 0;
+    }
+    return n;
+  }
+
+  /**
+   * Solves one board with one combination of settings.
+   */
+  private class Run implements Callable<Run> {
+    private final File file;
+    private final String[] config;
+    private int score = -1, moves;
+    private long runtime;
+    private boolean pareto;
+    private String result = "ok";
+
+    public Run(File file, String[] config) {
+      this.file = file;
+      this.config = config;
+    }
+
+    public String settings() {
+      StringBuilder sb = new StringBuilder();
+      for (String c : config) {
+        sb.append(sb.length() > 0 ? " " : "").append(c);
+      }
+      return sb.toString();
+    }
+
+    /**
+     * @return true iff the board couldn't be solved with these settings
+     */
+    public boolean failed() {
+      return score < 0;
+    }
+
+    @Override
+    public Run call() {
+      int[] bt = new int[Board.BOARD_SPACE], s;
+      try {
+        s = Threes.parseBoard(file.getPath(), bt);
+      } catch (IOException | IllegalArgumentException e) {
+        log_info("Skipping %s: %s", file, e.getMessage());
+        result = "invalid: " + e.getMessage();
+        return this;
+      }
+
+      String[] all = Arrays.copyOf(args, args.length + config.length);
+      System.arraycopy(config, 0, all, args.length, config.length);
+      try {
+        Solver solver = Threes.newSolver(s, Threes.parseSettings(all));
+        runtime = System.nanoTime();
+        Board bs = solver.solve(new Board(bt));
+        runtime = System.nanoTime() - runtime;
+        score = bs.score();
+        moves = bs.pathLength();
+      } catch (RuntimeException e) {
+        score = -1;
+        result = "failed: " + e;
+        System.err.printf("%s [%s] failed: %s\n", file.getName(), settings(), e);
+        return this;
+      }
+      log_info("%s [%s]: %d in %.2f s", file.getName(), settings(), score, runtime / 1e9);
+      return this;
+    }
+  }
+}
@@ -0,0 +1,353 @@
+package threes;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+import static threes.Threes.log_info;
+
+/**
+ * Counters and latency histograms for the search, so that it can be seen
+ * why a solve is slow without running it again in verbose mode.
+ *
+ * Solvers that play one move at a time (DLDFS, beam, Monte Carlo) time how
+ * long each move took to decide. The best-first search doesn't decide on
+ * moves until the end, so it times each lookahead (expansion) instead, and
+ * the two are kept apart.
+ *
+ * Each solver has its own, which counts its last solve, and also adds
+ * everything to a process-wide one that can be watched over JMX.
+ * The solvers count the busiest things (nodes, leaves) per thread, and
+ * only add them here once per lookahead, so it costs next to nothing.
+ *
+ * A listener can also be told about each better game that a solver finds
+ * while it's still solving (see improved()).
+ * @author Jeremy Tan, 20933708
+ */
+public final class Telemetry implements TelemetryMBean {
+  /** Latency buckets: 2^i us each, so the last is over an hour */
+  private static final int BUCKETS = 32;
+  private static final String JMX_NAME = "threes:type=Telemetry";
+  private static final Telemetry global = new Telemetry(null);
+
+  /** Where everything is also counted; null for the process-wide one */
+  private final Telemetry parent;
+  private final AtomicLong nodes = new AtomicLong(), leaves = new AtomicLong(),
+                           boards = new AtomicLong(), dropHalves = new AtomicLong(),
+                           trims = new AtomicLong(), contention = new AtomicLong();
+  private final Latency moves = new Latency(), lookaheads = new Latency();
+  private volatile Listener listener;
+
+  /**
+   * How long something took, each time: a count, a histogram and a maximum.
+   */
+  private static final class Latency {
+    private final AtomicLong count = new AtomicLong(), max_ns = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    void add(long ns) {
+      count.incrementAndGet();
+      long us = Math.max(1, ns / 1000);
+      buckets.incrementAndGet(Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(us)));
+      long max;
+      while (ns > (max = max_ns.get()) && !max_ns.compareAndSet(max, ns)) {
+        //Somebody else got there first; try again
+      }
+    }
+
+    void reset() {
+      count.set(0);
+      max_ns.set(0);
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets.set(i, 0);
+      }
+    }
+
+    /**
+     * An estimate of a percentile: the top of the bucket it's in.
+     * @param p The percentile, between 0 and 1
+     * @return The latency in ms, or 0 if there haven't been any
+     */
+    double percentile(double p) {
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        total += buckets.get(i);
+      }
+      long seen = 0;
+      for (int i = 0; i < BUCKETS && total > 0; i++) {
+        seen += buckets.get(i);
+        if (seen >= p * total) {
+          return Math.min((2L << i) / 1000.0, maxMillis());
+        }
+      }
+      return 0;
+    }
+
+    double maxMillis() {
+      return max_ns.get() / 1000000.0;
+    }
+
+    long[] histogram() {
+      long[] ret = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) {
+        ret[i] = buckets.get(i);
+      }
+      return ret;
+    }
+
+    /**
+     * @param name What was timed, e.g. "moves"
+     * @return e.g. "32 moves, latency p50 1.02ms, p99 4.10ms, max 3.75ms"
+     */
+    String summary(String name) {
+      return String.format("%d %s, latency p50 %.2fms, p99 %.2fms, max %.2fms",
+                           count.get(), name, percentile(0.5),
+                           percentile(0.99), maxMillis());
+    }
+  }
+
+  /**
+   * Told about each better game that a solver finds while it's solving.
+   */
+  public interface Listener {
+    /**
+     * Called on whichever thread found the game (often one of the search
+     * pool's), without any of the solver's locks held. It holds up that
+     * thread's search, and can be called by several threads at once, and
+     * not always in order of score, so it should only record the game.
+     * @param b A better game than the solver had when it was found
+     */
+    void improved(Board b);
+  }
+
+  private Telemetry(Telemetry parent) {
+    this.parent = parent;
+  }
+
+  /**
+   * @return New telemetry for a solver, which also counts towards the
+   *         process-wide telemetry
+   */
+  public static Telemetry create() {
+    return new Telemetry(global);
+  }
+
+  /**
+   * @param parent Where everything is also counted
+   * @return New telemetry for part of a solver
+   */
+  public static Telemetry create(Telemetry parent) {
+    return new Telemetry(parent);
+  }
+
+  /**
+   * @return The process-wide telemetry
+   */
+  public static Telemetry global() {
+    return global;
+  }
+
+  /**
+   * Makes the process-wide telemetry available over JMX. This is done on
+   * a background thread, as starting JMX takes a while.
+   */
+  public static void register() {
+    Thread t = new Thread(new Runnable() {
+      @Override public void run() {
+        try {
+          ManagementFactory.getPlatformMBeanServer().registerMBean(
+                  global, new ObjectName(JMX_NAME));
+        } catch (Exception e) { //JMX throws a lot of different things
+          log_info("Couldn't register telemetry with JMX: %s", e);
+        }
+      }
+    }, "telemetry-jmx");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Forgets everything counted here (but not by the parent).
+   */
+  public void reset() {
+    for (AtomicLong a : new AtomicLong[] {nodes, leaves, boards, dropHalves,
+                                          trims, contention}) {
+      a.set(0);
+    }
+    moves.reset();
+    lookaheads.reset();
+  }
+
+  /**
+   * Counts the work of (part of) a search.
+   * @param nodes Interior nodes expanded
+   * @param leaves Leaves evaluated
+   * @param boards Boards allocated
+   * @param trims Boards pushed out of full queues
+   */
+  public void search(long nodes, long leaves, long boards, long trims) {
+    this.nodes.addAndGet(nodes);
+    this.leaves.addAndGet(leaves);
+    this.boards.addAndGet(boards);
+    this.trims.addAndGet(trims);
+    if (parent != null) {
+      parent.search(nodes, leaves, boards, trims);
+    }
+  }
+
+  /**
+   * Reports a better game than any found so far in this solve (if the
+   * solver finds whole games before it's done). Not passed to the parent.
+   * @param b The game
+   */
+  public void improved(Board b) {
+    Listener l = listener;
+    if (l != null) {
+      l.improved(b);
+    }
+  }
+
+  /**
+   * @param listener What to tell about better games, or null
+   */
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Counts a queue having half of its boards dropped.
+   */
+  public void dropHalf() {
+    dropHalves.incrementAndGet();
+    if (parent != null) {
+      parent.dropHalf();
+    }
+  }
+
+  /**
+   * Counts a thread having to wait to update the best board.
+   */
+  public void contended() {
+    contention.incrementAndGet();
+    if (parent != null) {
+      parent.contended();
+    }
+  }
+
+  /**
+   * Counts a move that was decided on, one at a time.
+   * @param ns How long it took to decide on, in ns
+   */
+  public void move(long ns) {
+    move(ns, 1);
+  }
+
+  /**
+   * Counts moves that were decided on together, as each taking an equal
+   * share of the time.
+   * @param ns How long they took to decide on, in ns
+   * @param n How many moves there were
+   */
+  public void move(long ns, int n) {
+    for (int i = 0; i < n; i++) {
+      moves.add(ns / n);
+    }
+    if (parent != null) {
+      parent.move(ns, n);
+    }
+  }
+
+  /**
+   * Counts a lookahead of the best-first search, which doesn't decide on
+   * a move by itself.
+   * @param ns How long it took, in ns
+   */
+  public void lookahead(long ns) {
+    lookaheads.add(ns);
+    if (parent != null) {
+      parent.lookahead(ns);
+    }
+  }
+
+  /**
+   * @return A one-line summary
+   */
+  public String summary() {
+    String ret = String.format("Telemetry: %d nodes, %d leaves, %d boards, " +
+            "%d drop halves, %d trims, %d contended",
+            nodes.get(), leaves.get(), boards.get(), dropHalves.get(),
+            trims.get(), contention.get());
+    //Only what this solver times (both, for the process-wide one)
+    if (lookaheads.count.get() > 0) {
+      ret += "; " + lookaheads.summary("lookaheads");
+    }
+    if (moves.count.get() > 0 || lookaheads.count.get() == 0) {
+      ret += "; " + moves.summary("moves");
+    }
+    return ret;
+  }
+
+  @Override public long getNodesExpanded() {
+    return nodes.get();
+  }
+
+  @Override public long getLeavesEvaluated() {
+    return leaves.get();
+  }
+
+  @Override public long getBoardsAllocated() {
+    return boards.get();
+  }
+
+  @Override public long getDropHalves() {
+    return dropHalves.get();
+  }
+
+  @Override public long getQueueTrims() {
+    return trims.get();
+  }
+
+  @Override public long getBestContention() {
+    return contention.get();
+  }
+
+  @Override public long getMoves() {
+    return moves.count.get();
+  }
+
+  @Override public double getMoveLatencyP50Millis() {
+    return moves.percentile(0.5);
+  }
+
+  @Override public double getMoveLatencyP99Millis() {
+    return moves.percentile(0.99);
+  }
+
+  @Override public double getMoveLatencyMaxMillis() {
+    return moves.maxMillis();
+  }
+
+  @Override public long[] getMoveLatencyHistogram() {
+    return moves.histogram();
+  }
+
+  @Override public long getLookaheads() {
+    return lookaheads.count.get();
+  }
+
+  @Override public double getLookaheadLatencyP50Millis() {
+    return lookaheads.percentile(0.5);
+  }
+
+  @Override public double getLookaheadLatencyP99Millis() {
+    return lookaheads.percentile(0.99);
+  }
+
+  @Override public double getLookaheadLatencyMaxMillis() {
+    return lookaheads.maxMillis();
+  }
+
+  @Override public long[] getLookaheadLatencyHistogram() {
+    return lookaheads.histogram();
+  }
+}
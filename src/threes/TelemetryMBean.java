@@ -0,0 +1,34 @@
+package threes;
+
+/**
+ * What Telemetry shows over JMX (e.g in jconsole, under threes).
+ * Everything counts up from the start of the process.
+ * @author Jeremy Tan, 20933708
+ */
+public interface TelemetryMBean {
+  public long getNodesExpanded();
+  public long getLeavesEvaluated();
+  public long getBoardsAllocated();
+  public long getDropHalves();
+  public long getQueueTrims();
+  public long getBestContention();
+  /** Moves decided on by the solvers that play one move at a time */
+  public long getMoves();
+  public double getMoveLatencyP50Millis();
+  public double getMoveLatencyP99Millis();
+  public double getMoveLatencyMaxMillis();
+  /**
+   * @return Counts of move latencies: entry i counts those from 2^i up to
+   *         2^(i+1) microseconds (entry 0 also counts anything shorter)
+   */
+  public long[] getMoveLatencyHistogram();
+  /** Lookaheads (expansions) of the best-first search */
+  public long getLookaheads();
+  public double getLookaheadLatencyP50Millis();
+  public double getLookaheadLatencyP99Millis();
+  public double getLookaheadLatencyMaxMillis();
+  /**
+   * @return Counts of lookahead latencies, bucketed as for moves
+   */
+  public long[] getLookaheadLatencyHistogram();
+}
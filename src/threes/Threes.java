@@ -1,8 +1,10 @@
 package threes;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -37,8 +39,21 @@ public class Threes {
    * @return The tile sequence
    * @throws IOException Garbage in Garbage out
    */
-  private static int[] parseBoard(String file, int[] b) throws IOException {
-    BufferedReader br = null;
+  static int[] parseBoard(String file, int[] b) throws IOException {
+    try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+      return parseBoard(br, b);
+    }
+  }
+  
+  /**
+   * Parses an input board and tile sequence, in the same format as the
+   * input file.
+   * @param br Where to read it from
+   * @param b The array in which to store the board tiles
+   * @return The tile sequence
+   * @throws IOException Garbage in Garbage out
+   */
+  static int[] parseBoard(BufferedReader br, int[] b) throws IOException {
     ArrayList<Integer> sequence = new ArrayList<>();
     int[] result;
     
@@ -46,50 +61,42 @@ public class Threes {
       throw new IllegalArgumentException("Invalid board size");
     }
 
-    try {
-      String c;
-      br = new BufferedReader(new FileReader(file));
-
-      br.readLine();
-      br.readLine(); //Skip first two lines
+    String c;
+    br.readLine();
+    br.readLine(); //Skip first two lines
 
-      for (int i = 0; i < Board.BOARD_WIDTH; i++) {
-        c = br.readLine();
-        String[] p;
-        if (c == null) {
-          throw new IOException("Malformed file");
-        }
+    for (int i = 0; i < Board.BOARD_WIDTH; i++) {
+      c = br.readLine();
+      String[] p;
+      if (c == null) {
+        throw new IOException("Malformed file");
+      }
 
-        p = c.split("[^0-9]");
-        for (int j = 0, k = 0; j < Board.BOARD_WIDTH && k < p.length; k++) {
-          if (!p[k].isEmpty()) {
-            int val = Integer.parseInt(p[k]);
-            if (!Board.valid_tile(val)) {
-              throw new IllegalArgumentException(
-                      "Invalid tile value: " + p[k] + " - " + c);
-            }
-            b[i * Board.BOARD_WIDTH + j++] = val;
+      p = c.split("[^0-9]");
+      for (int j = 0, k = 0; j < Board.BOARD_WIDTH && k < p.length; k++) {
+        if (!p[k].isEmpty()) {
+          int val = Integer.parseInt(p[k]);
+          if (!Board.valid_tile(val)) {
+            throw new IllegalArgumentException(
+                    "Invalid tile value: " + p[k] + " - " + c);
           }
+          b[i * Board.BOARD_WIDTH + j++] = val;
         }
       }
-      br.readLine(); //Skip line
+    }
+    br.readLine(); //Skip line
 
-      while ((c = br.readLine()) != null) {
-        for (String p : c.split("[^0-9]")) {
-          if (!p.isEmpty()) {
-            Integer a = Integer.parseInt(p);
-            if (!Board.valid_tile(a)) {
-              throw new IllegalArgumentException(
-                      "Invalid tile value: " + p + " - " + c);
-            }
-            sequence.add(a);
+    while ((c = br.readLine()) != null) {
+      for (String p : c.split("[^0-9]")) {
+        if (!p.isEmpty()) {
+          Integer a = Integer.parseInt(p);
+          if (!Board.valid_tile(a)) {
+            throw new IllegalArgumentException(
+                    "Invalid tile value: " + p + " - " + c);
           }
+          sequence.add(a);
         }
       }
-    } finally {
-      if (br != null) {
-        br.close();
-      }
     }
     
     result = new int[sequence.size()];
@@ -136,7 +143,7 @@ public class Threes {
     for (int i = 1; i < length; i++) {
       switch(args[cp].charAt(i)) {
         case 'v':
-          verbose = !verbose;
+          settings.verbose = !settings.verbose;
           break;
           
         case 'n':
@@ -147,6 +154,77 @@ public class Threes {
           settings.singleThreaded = !settings.singleThreaded;
           break;
           
+        case 'b':
+          if (pos + 1 >= args.length) {
+            return -1;
+          }
+          settings.beam_width = Integer.parseInt(args[++pos]);
+          break;
+          
+        case 'r':
+          if (pos + 1 >= args.length) {
+            return -1;
+          }
+          settings.rollouts = Integer.parseInt(args[++pos]);
+          break;
+          
+        case 'e':
+          if (pos + 1 >= args.length) {
+            return -1;
+          }
+          settings.endgame_tiles = Integer.parseInt(args[++pos]);
+          break;
+          
+        case 'B':
+          if (pos + 1 >= args.length) {
+            return -1;
+          }
+          settings.batchDir = args[++pos];
+          break;
+          
+        case 'S':
+          if (pos + 1 >= args.length) {
+            return -1;
+          }
+          settings.port = Integer.parseInt(args[++pos]);
+          break;
+          
+        case 'T':
+          if (pos + 1 >= args.length) {
+            return -1;
+          }
+          settings.traceFile = args[++pos];
+          break;
+          
+        case 'W':
+          if (pos + 1 >= args.length) {
+            return -1;
+          }
+          settings.sweep = args[++pos];
+          break;
+          
+        case 'j':
+          if (pos + 1 >= args.length) {
+            return -1;
+          }
+          settings.jobs = Integer.parseInt(args[++pos]);
+          break;
+          
+        case 'k':
+          settings.keepDepth = !settings.keepDepth;
+          break;
+          
+        case 't':
+          if (pos + 1 >= args.length) {
+            return -1;
+          }
+          settings.time_limit = Long.parseLong(args[++pos]);
+          break;
+          
+        case 'p':
+          settings.async = !settings.async;
+          break;
+          
         case 'd':
           settings.useDLDFS = !settings.useDLDFS;
         break;
@@ -179,6 +257,27 @@ public class Threes {
           settings.ipq_size = Integer.parseInt(args[++pos]);
           break;
         
+        case 'g':
+          if (pos + 1 >= args.length) {
+            return -1;
+          }
+          settings.grain = Integer.parseInt(args[++pos]);
+          break;
+          
+        case 'f':
+          if (pos + 1 >= args.length) {
+            return -1;
+          }
+          settings.margin = Integer.parseInt(args[++pos]);
+          break;
+          
+        case 'H':
+          if (pos + 1 >= args.length) {
+            return -1;
+          }
+          settings.tt_size = Integer.parseInt(args[++pos]);
+          break;
+          
         case 'o':
           if (pos + 1 >= args.length) {
             return -1;
@@ -214,20 +313,58 @@ public class Threes {
   
   public static void usage() {
     System.out.println("CITS3001 Threes solver - 2014 r2");
-    System.out.println("Usage: threes [-vsnd -l <i,j,k,l> -a <lookahead> -u <pq_sz> -i <ipq_sz>");
-    System.out.println("              -q <qui_sz> -o <output_file> -m <moves_file>] input_file");
+    System.out.println("Usage: threes [-vsndpk -l <i,j,k,l> -a <lookahead> -u <pq_sz> -i <ipq_sz>");
+    System.out.println("              -q <qui_sz> -H <tt_mb> -g <grain> -f <margin>");
+    System.out.println("              -t <ms> -b <width> -r <rollouts> -e <tiles> -o <output_file>");
+    System.out.println("              -m <moves_file> -B <out_dir> -j <jobs> -S <port>");
+    System.out.println("              -W <ranges> -T <trace_file>] input_file...");
     System.out.println("Options:");
     System.out.println("  -v Enables verbose output to stderr. Highly recommended (else no progress).");
+    System.out.println("  -T <trace_file> Writes the progress of the search (as -v prints it) to a binary");
+    System.out.println("     trace file instead, which is much faster. To read it, run");
+    System.out.println("     java -cp threes.jar threes.TraceDump <trace_file>");
     System.out.println("  -s Runs the solving algorithm in single-threaded mode.");
     System.out.println("  -d Uses depth-limited depth-first search (DLDFS), instead of priority search.");
     System.out.println("  -n DLDFS mode: Disables backtracking.");
+    System.out.println("  -p Asynchronous priority search: each thread takes boards from a shared");
+    System.out.println("     queue and expands them on its own. Scales better, but less ordered.");
     System.out.println("  -a <lookahead> Controls the lookahead. Default is 8 moves.");
     System.out.println("  -q <qui_sz> Changes the quiescence limit. Default is 5000.");
     System.out.println("  -u <pq_sz> Change the size limit of the main priority queue. Default is 200.");
     System.out.println("  -i <ipq_sz> The nominal size of individual priority queues. Default is 2.");
+    System.out.println("  -H <tt_mb> Size of the lookahead transposition table in MiB. Default is 16, 0 disables.");
+    System.out.println("  -g <grain> Lookahead depth left at which subtrees stop being split between");
+    System.out.println("     threads. Default is the lookahead less 4, but at least 2.");
+    System.out.println("  -f <margin> How much the evaluation is assumed to be able to rise per move when");
+    System.out.println("     skipping lookahead subtrees. Default is 0, which only skips provably bad ones.");
+    System.out.println("     160 is much faster, but can change the result.");
+    System.out.println("  -t <ms> Deadline mode: stops searching after this many ms and returns the best");
+    System.out.println("     solution so far (which may be partial). The lookahead gets shallower as");
+    System.out.println("     the deadline nears.");
+    System.out.println("  -k Deadline mode: keeps the full lookahead depth until the deadline.");
+    System.out.println("  -b <width> Uses beam search with the given beam width, instead of priority");
+    System.out.println("     search. Each move, the best <width> boards are kept (e.g 1000).");
+    System.out.println("  -r <rollouts> Uses Monte Carlo rollouts, with this many per possible move");
+    System.out.println("     (e.g 64). The rollout length is set by -a, and is 20 by default.");
+    System.out.println("  -e <tiles> Solve exactly once this many tiles are left. Default is 0 (off).");
+    System.out.println("     8 can find a better ending, but is much slower on short games.");
     System.out.println("  -l <i,j,k,l> (Manual) learning mode. <i,j,k,l> specifies the inital weights");
     System.out.println("  -o <output_file> Writes the moves to the specified file.");
     System.out.println("  -m <moves_file> Reads a moves file to play the board (benchmarking purposes).");
+    System.out.println("  -B <out_dir> Batch mode: solves every input file (or every file in an input");
+    System.out.println("     directory) in the one JVM. Writes out-<name> for each board and a");
+    System.out.println("     summary.csv to <out_dir>.");
+    System.out.println("  -j <jobs> Batch/sweep mode: boards to solve at once. Default is 1, or the number");
+    System.out.println("     of processors with -s. Server mode: requests to solve at once.");
+    System.out.println("  -W <ranges> Sweep mode: solves every input board with every combination of");
+    System.out.println("     settings, e.g \"a=1-8 u=200,300 i=2 q=5000,20000\" (-a, -u, -i and -q),");
+    System.out.println("     and reports which give the best score for the time taken. Writes");
+    System.out.println("     every result to <out_dir>/sweep.csv if -B is given.");
+    System.out.println("  -S <port> Server mode: stays running, and solves boards sent to this port");
+    System.out.println("     (on localhost only). Each connection is one request: a line with");
+    System.out.println("     'SOLVE' and any options (added to those given here), then an input");
+    System.out.println("     file, then a line with 'END'. The reply is 'OK' then the output that");
+    System.out.println("     would be written to stdout, or 'ERROR <reason>'.");
     System.out.println();
     System.out.println("The output moves will always be printed to stdout.");
     System.out.println("Specifying a moves file with '-m' takes precedence over solving.");
@@ -242,27 +379,87 @@ public class Threes {
   }
   
   /**
-   * @param args the command line arguments
+   * Parses the command line (or the options of a server request).
+   * @param args The arguments
+   * @return The settings
+   * @throws IllegalArgumentException If an option is invalid
    */
-  public static void main(String[] args) {
+  static Settings parseSettings(String[] args) {
     Settings settings = new Settings();
-    int[] bt = new int[Board.BOARD_SPACE], s;
-    
     for (int i = 0; i < args.length; i++) {
       if (args[i].startsWith("-")) {
-        int j = parseArgs(args, i, settings);
+        int j;
+        try {
+          j = parseArgs(args, i, settings);
+        } catch (NumberFormatException e) {
+          j = -1;
+        }
         if (j < 0) {
-          System.err.println("Invalid value: " + args[i]);
-          usage();
-          return;
-        } else {
-          i = j;
+          throw new IllegalArgumentException("Invalid value: " + args[i]);
         }
+        i = j;
       } else {
         settings.inputBoard = args[i];
+        settings.inputs.add(args[i]);
+      }
+    }
+    return settings;
+  }
+  
+  /**
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) {
+    Settings settings;
+    int[] bt = new int[Board.BOARD_SPACE], s;
+    
+    try {
+      settings = parseSettings(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      usage();
+      return;
+    }
+    verbose = settings.verbose;
+    Telemetry.register();
+    if (settings.traceFile != null) {
+      try {
+        Trace.open(settings.traceFile);
+      } catch (IOException e) {
+        System.err.printf("Can't write trace %s: %s\n",
+                settings.traceFile, e.getMessage());
+        return;
       }
     }
     
+    if (settings.port > 0) {
+      try {
+        new Server(settings, args).run();
+      } catch (IOException e) {
+        System.err.printf("Server failed: %s\n", e.getMessage());
+      }
+      return;
+    }
+    
+    if (settings.sweep != null || settings.batchDir != null) {
+      if (settings.inputs.isEmpty()) {
+        System.err.println("No input boards specified.");
+        usage();
+        return;
+      }
+      try {
+        if (settings.sweep != null) {
+          new Sweep(settings, args).run();
+        } else {
+          new Batch(settings).run();
+        }
+      } catch (IOException | IllegalArgumentException e) {
+        System.err.printf("%s failed: %s\n", 
+                settings.sweep != null ? "Sweep" : "Batch", e.getMessage());
+      }
+      return;
+    }
+    
     if (settings.inputBoard == null) {
       System.err.println("No input board file specified.");
       usage();
@@ -289,7 +486,6 @@ public class Threes {
       
       long time = System.nanoTime();
       for (int i = 0; i < 40000; i++) {
-        System.out.printf("Move %d\n", i);
         Board b = new Board(bt);
         for (Direction move : moves) {
           if (!b.move(s, move)) {
@@ -316,19 +512,77 @@ public class Threes {
       return;
     } 
     
-    Solver solver;
-    if (settings.useDLDFS) {
-      solver = new DLDFSolver(s, settings.singleThreaded, !settings.noBacktrack);
-    } else {
-      solver = new ASSolver(s, settings.singleThreaded, settings.lookahead, 
-                            settings.pq_size, settings.ipq_size, settings.qui_size);
-    }
-
+    Solver solver = newSolver(s, settings);
     Board bs;
     long runtime = System.nanoTime();
     bs = solver.solve(new Board(bt));
     runtime = System.nanoTime() - runtime;
     
+    String summary = summarise(bs, s.length, runtime);
+    log_info(bs);
+    PrintWriter out = new PrintWriter(new BufferedWriter(
+                                      new OutputStreamWriter(System.out)));
+    writeResult(out, summary, bs);
+    out.flush();
+    //Kept off stdout and the output file, so their format doesn't change
+    System.err.println(solver.telemetry().summary());
+    if (settings.outputFile != null) {
+      try (PrintWriter writer = new PrintWriter(settings.outputFile, "UTF-8")) {
+        writeResult(writer, summary, bs);
+      } catch (IOException e) {
+        System.err.printf("Failed to write out to %s: %s\n", 
+                settings.outputFile, e.getMessage());
+      }
+    }
+  }
+  
+  /**
+   * Makes the solver that the settings ask for.
+   * @param s The tile sequence
+   * @param settings The settings
+   * @return The solver
+   */
+  static Solver newSolver(int[] s, Settings settings) {
+    return newSolver(s, settings, null);
+  }
+  
+  /**
+   * Makes the solver that the settings ask for.
+   * @param s The tile sequence
+   * @param settings The settings
+   * @param tt A transposition table for it to reuse, or null for a new one
+   *           (if it uses one)
+   * @return The solver
+   */
+  static Solver newSolver(int[] s, Settings settings, TranspositionTable tt) {
+    Solver solver;
+    if (settings.useDLDFS) {
+      solver = new DLDFSolver(s, settings.singleThreaded, !settings.noBacktrack,
+                              settings.endgame_tiles);
+    } else if (settings.rollouts > 0) {
+      solver = new MCSolver(s, settings.singleThreaded, settings.rollouts, 
+                            settings.lookahead);
+    } else if (settings.beam_width > 0) {
+      solver = new BeamSolver(s, settings.singleThreaded, settings.beam_width);
+    } else {
+      solver = new ASSolver(s, settings.singleThreaded, settings.async,
+                            settings.lookahead, 
+                            settings.pq_size, settings.ipq_size, settings.qui_size,
+                            settings.tt_size, settings.grain, settings.margin,
+                            settings.time_limit, !settings.keepDepth,
+                            settings.endgame_tiles, tt);
+    }
+    return solver;
+  }
+  
+  /**
+   * The result summary: the final board's stats, then the moves used.
+   * @param bs The solved board
+   * @param length The length of the tile sequence
+   * @param runtime How long it took to solve, in ns
+   * @return The summary
+   */
+  static String summarise(Board bs, int length, long runtime) {
     Formatter f = new Formatter();
     String endl = System.getProperty("line.separator");
     f.format("%d, %d, %d, %d, %d, %d%s",
@@ -336,28 +590,49 @@ public class Threes {
               bs.zeros(), bs.checkerboarding3(),
               bs.smoothness(), bs.nCombinable(), endl);
     f.format("Used %d/%d available moves in %.2f seconds. (%.2f m/s)%s", 
-              bs.moves().length(), s.length, 
+              bs.pathLength(), length, 
               runtime / 1000000000.0,
-              bs.moves().length() / (runtime / 1000000000.0),
+              bs.pathLength() / (runtime / 1000000000.0),
               endl);
-    f.format(bs.moves());
-    
-    log_info(bs);
-    System.out.println(f.toString());
-    if (settings.outputFile != null) {
-      try (PrintWriter writer = new PrintWriter(settings.outputFile, "UTF-8")) {
-        writer.println(f.toString());
-      } catch (IOException e) {
-        System.err.printf("Failed to write out to %s: %s\n", 
-                settings.outputFile, e.getMessage());
-      }
+    return f.toString();
+  }
+  
+  /**
+   * Writes out the result summary, followed by the moves.
+   * @param w Where to write to
+   * @param summary The result summary
+   * @param b The solved board
+   */
+  static void writeResult(PrintWriter w, String summary, Board b) {
+    w.print(summary);
+    try {
+      b.writeMoves(w);
+    } catch (IOException e) { //PrintWriter doesn't throw
+      throw new IllegalStateException(e);
     }
+    w.println();
   }
   
-  private static class Settings {
-    String inputBoard, outputFile, movesFile;
+  static class Settings {
+    String inputBoard, outputFile, movesFile, batchDir, traceFile;
+    List<String> inputs = new ArrayList<>();
     int[] starting_learnfactors;
-    boolean noBacktrack, singleThreaded, useDLDFS;
-    int lookahead = -1, pq_size = -1, ipq_size = -1, qui_size = -1;
+    boolean verbose, noBacktrack, singleThreaded, useDLDFS, async, keepDepth;
+    int lookahead = -1, pq_size = -1, ipq_size = -1, qui_size = -1, tt_size = -1;
+    int grain = -1, margin = -1;
+    long time_limit = 0;
+    int beam_width = 0, rollouts = 0, endgame_tiles = 0, jobs = -1, port = 0;
+    String sweep;
+    
+    /**
+     * @return How many boards to solve at once, in batch, server and sweep
+     *         modes. Multi-threaded solvers already use every processor.
+     */
+    int jobs() {
+      if (jobs > 0) {
+        return jobs;
+      }
+      return singleThreaded ? Math.max(1, Runtime.getRuntime().availableProcessors()) : 1;
+    }
   }
 }
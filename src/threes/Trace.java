@@ -0,0 +1,199 @@
+package threes;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Trace mode: the search's progress (what verbose mode prints for every
+ * board taken off the queue) is written to a file as compact binary
+ * records instead, so that tracing barely slows the search down.
+ * TraceDump turns a trace back into the text that verbose mode prints.
+ *
+ * Records go into a lock-free ring buffer, which a background thread
+ * drains to the file. Nothing is dropped: if the buffer fills up, the
+ * search waits for it to be drained.
+ *
+ * Each record is four longs: the packed board's low plane; its high plane
+ * and the type; the position in the tile sequence; and the queue size and
+ * how long the best board has been the same (as in the "PQ Size" lines).
+ * @author Jeremy Tan, 20933708
+ */
+public final class Trace {
+  /** A board was taken off the queue (the "PQ Size" line, then the board) */
+  public static final int POP = 1;
+  /** Just the "PQ Size" line */
+  public static final int QUEUE = 2;
+  /** The queue had half of its boards dropped */
+  public static final int DROP_HALF = 3;
+
+  static final int MAGIC = 0x54485254; //THRT
+  static final int VERSION = 2;
+  static final int WORDS = 4;
+  /** Records in the ring buffer; a power of 2 */
+  private static final int CAPACITY = 1 << 16;
+  private static final long IDLE_NS = 1000000;
+
+  private static volatile Trace current;
+
+  private final long[] data = new long[CAPACITY * WORDS];
+  /** The number of the record in each slot, plus 1, once it's written */
+  private final AtomicLongArray ready = new AtomicLongArray(CAPACITY);
+  /** Records claimed by writers, and records drained */
+  private final AtomicLong tail = new AtomicLong(), head = new AtomicLong();
+  private final DataOutputStream out;
+  private final Thread drainer;
+  private volatile boolean closed;
+  private IOException error;
+
+  private Trace(String file) throws IOException {
+    out = new DataOutputStream(new BufferedOutputStream(
+                               new FileOutputStream(file), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    drainer = new Thread(new Runnable() {
+      @Override public void run() {
+        drain();
+      }
+    }, "trace-drainer");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /**
+   * Starts tracing to a file, until the process exits.
+   * @param file The trace file
+   * @throws IOException If it can't be created
+   */
+  public static synchronized void open(String file) throws IOException {
+    if (current != null) {
+      throw new IllegalStateException("Already tracing");
+    }
+    current = new Trace(file);
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override public void run() {
+        close();
+      }
+    }));
+  }
+
+  /**
+   * Stops tracing, once everything so far has been written out.
+   */
+  public static synchronized void close() {
+    Trace t = current;
+    if (t == null) {
+      return;
+    }
+    current = null;
+    t.closed = true;
+    try {
+      t.drainer.join();
+      t.out.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      t.error = e;
+    }
+    if (t.error != null) {
+      System.err.printf("Failed to write the trace: %s\n", t.error.getMessage());
+    }
+  }
+
+  /**
+   * @return true iff progress should be traced rather than logged
+   */
+  public static boolean on() {
+    return current != null;
+  }
+
+  /**
+   * Traces a board being taken off the queue.
+   * @param b The board
+   * @param size The queue size
+   * @param stalled For how long the best board has been the same
+   */
+  public static void pop(Board b, int size, int stalled) {
+    record(POP, b.packed(), b.packedHigh(), b.nMoves(), size, stalled);
+  }
+
+  /**
+   * Traces the size of the queue.
+   * @param size The queue size
+   * @param stalled For how long the best board has been the same
+   */
+  public static void queue(int size, int stalled) {
+    record(QUEUE, 0, 0, 0, size, stalled);
+  }
+
+  /**
+   * Traces the queue having half of its boards dropped.
+   */
+  public static void dropHalf() {
+    record(DROP_HALF, 0, 0, 0, 0, 0);
+  }
+
+  private static void record(int type, long board, int high, int nMoves,
+                             int size, int stalled) {
+    Trace t = current;
+    if (t != null) {
+      t.put(board, ((long)type << 32) | (high & 0xFFFFFFFFL), nMoves,
+            ((long)size << 32) | (stalled & 0xFFFFFFFFL));
+    }
+  }
+
+  /**
+   * Adds a record to the ring buffer, waiting if it's full.
+   */
+  private void put(long w0, long w1, long w2, long w3) {
+    long n;
+    while (true) {
+      n = tail.get();
+      if (n - head.get() >= CAPACITY) {
+        if (closed) {
+          return; //Nothing's draining it any more
+        }
+        Thread.yield(); //Full: the drainer has some catching up to do
+      } else if (tail.compareAndSet(n, n + 1)) {
+        break;
+      }
+    }
+    int slot = (int)(n & (CAPACITY - 1));
+    data[slot * WORDS] = w0;
+    data[slot * WORDS + 1] = w1;
+    data[slot * WORDS + 2] = w2;
+    data[slot * WORDS + 3] = w3;
+    ready.lazySet(slot, n + 1); //Publishes the writes above
+  }
+
+  /**
+   * Writes out records in order, as they become ready, until closed.
+   */
+  private void drain() {
+    long n = head.get();
+    while (true) {
+      int slot = (int)(n & (CAPACITY - 1));
+      if (ready.get(slot) == n + 1) {
+        if (error == null) {
+          try {
+            out.writeLong(data[slot * WORDS]);
+            out.writeLong(data[slot * WORDS + 1]);
+            out.writeLong(data[slot * WORDS + 2]);
+            out.writeLong(data[slot * WORDS + 3]);
+          } catch (IOException e) {
+            error = e; //Keep draining, so the search doesn't wait forever
+          }
+        }
+        head.lazySet(++n);
+      } else if (closed && tail.get() == n) {
+        return;
+      } else {
+        LockSupport.parkNanos(IDLE_NS);
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package threes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * Prints a trace (see Trace) as the text that verbose mode would have
+ * printed for it.
+ *
+ * Usage: java -cp threes.jar threes.TraceDump trace_file
+ * @author Jeremy Tan, 20933708
+ */
+public class TraceDump {
+  /**
+   * Prints out a trace.
+   * @param in The trace
+   * @param out Where to print it
+   * @throws IOException If the trace can't be read, or isn't one
+   */
+  static void dump(DataInputStream in, PrintWriter out) throws IOException {
+    try {
+      if (in.readInt() != Trace.MAGIC) {
+        throw new IOException("Not a trace file");
+      } else if (in.readInt() != Trace.VERSION) {
+        throw new IOException("Unsupported trace version");
+      }
+    } catch (EOFException e) {
+      throw new IOException("Not a trace file");
+    }
+
+    while (true) {
+      long board, w1, w2, w3;
+      try {
+        board = in.readLong();
+      } catch (EOFException e) {
+        return;
+      }
+      try {
+        w1 = in.readLong();
+        w2 = in.readLong();
+        w3 = in.readLong();
+      } catch (EOFException e) {
+        throw new IOException("Truncated record");
+      }
+
+      int type = (int)(w1 >>> 32), high = (int)w1, nMoves = (int)w2;
+      int size = (int)(w3 >>> 32), stalled = (int)w3;
+      switch (type) {
+        case Trace.POP:
+          out.printf("PQ Size: %d (%d)%n", size, stalled);
+          out.println(Board.render(board, high, nMoves));
+          break;
+        case Trace.QUEUE:
+          out.printf("PQ Size: %d (%d)%n", size, stalled);
+          break;
+        case Trace.DROP_HALF:
+          out.println("DROP HALF");
+          break;
+        default:
+          throw new IOException("Unknown record type " + type);
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    if (args.length != 1) {
+      System.out.println("Usage: TraceDump trace_file");
+      return;
+    }
+    PrintWriter out = new PrintWriter(new BufferedWriter(
+                                      new OutputStreamWriter(System.out)));
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                                  new FileInputStream(args[0])))) {
+      dump(in, out);
+    } catch (IOException e) {
+      out.flush();
+      System.err.printf("Invalid trace %s: %s\n", args[0], e.getMessage());
+      return;
+    }
+    out.flush();
+  }
+}
@@ -0,0 +1,109 @@
+package threes;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size, open-addressed transposition table, shared without locks by
+ * all search threads. It records which positions have already been expanded
+ * in the current search, and with how much depth remaining, so that a
+ * search can skip a subtree that it (or another thread) has already been
+ * through.
+ * 
+ * Each entry is two longs: the board key XORed with the entry data, and the
+ * data itself. A reader only accepts an entry if the two agree, so an entry
+ * that was torn by a concurrent write is simply treated as a miss.
+ * @author Jeremy Tan, 20933708
+ */
+public final class TranspositionTable {
+  /** Bytes used by each entry */
+  public static final int ENTRY_SIZE = 2 * Long.SIZE / Byte.SIZE;
+  /** Number of neighbouring slots to look at when probing */
+  private static final int PROBE_LENGTH = 4;
+  
+  private final long[] table;
+  private final int mask;
+  /** 
+   * Entries from older searches are ignored. Only changed by the thread
+   * that starts the search, before the search threads are started.
+   */
+  private int generation = 1;
+  private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+  
+  /**
+   * @param sizeMB The (maximum) size of the table in MiB. The actual
+   *               number of entries is rounded down to a power of 2.
+   */
+  public TranspositionTable(int sizeMB) {
+    long entries = ((long)sizeMB << 20) / ENTRY_SIZE;
+    if (entries < PROBE_LENGTH || entries > (1 << 30)) {
+      throw new IllegalArgumentException("Invalid table size: " + sizeMB + "MiB");
+    }
+    int n = Integer.highestOneBit((int)entries);
+    table = new long[2 * n];
+    mask = n - 1;
+  }
+  
+  /**
+   * Starts a new search; everything recorded so far is forgotten.
+   */
+  public void newSearch() {
+    generation++;
+  }
+  
+  /**
+   * Looks up a position, and records it as expanded if it wasn't already.
+   * @param key The Zobrist key of the position
+   * @param depth The depth remaining below the position
+   * @return true iff the position was already expanded in this search
+   *         with at least as much depth remaining.
+   */
+  public boolean visit(long key, int depth) {
+    depth = Math.min(depth, 0xFF);
+    long data = ((long)generation << 8) | depth;
+    int idx = (int)(key ^ (key >>> 32)) & mask;
+    int replace = idx;
+    int replace_depth = Integer.MAX_VALUE;
+    
+    for (int i = 0; i < PROBE_LENGTH; i++) {
+      int slot = 2 * ((idx + i) & mask);
+      long d = table[slot + 1];
+      long k = table[slot] ^ d;
+      boolean current = (int)(d >>> 8) == generation;
+      
+      if (current && k == key) {
+        if ((int)(d & 0xFF) >= depth) {
+          hits.incrementAndGet();
+          return true;
+        }
+        replace = (idx + i) & mask;
+        break;
+      }
+      //Prefer stale entries, then shallow ones
+      int rd = current ? (int)(d & 0xFF) : -1;
+      if (rd < replace_depth) {
+        replace = (idx + i) & mask;
+        replace_depth = rd;
+      }
+    }
+    
+    misses.incrementAndGet();
+    table[2 * replace] = key ^ data;
+    table[2 * replace + 1] = data;
+    return false;
+  }
+  
+  public long hits() {
+    return hits.get();
+  }
+  
+  public long misses() {
+    return misses.get();
+  }
+  
+  /**
+   * @return The size of the table, in bytes
+   */
+  public long size() {
+    return (long)table.length * (Long.SIZE / Byte.SIZE);
+  }
+}
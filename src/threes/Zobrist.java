@@ -0,0 +1,93 @@
+package threes;
+
+import java.util.Random;
+
+/**
+ * Zobrist keys for packed boards.
+ * Every (cell, tile code) pair gets a random 64-bit key, and the key of a
+ * board is the XOR of the keys of its cells, mixed with a key for the
+ * position in the tile sequence. As it's an XOR, a move only has to
+ * update the cells that it actually changed.
+ * @author Jeremy Tan, 20933708
+ */
+public final class Zobrist {
+  /** Fixed, so that keys are reproducible between runs */
+  private static final long SEED = 0x3001L;
+  private static final long[][] cell_keys =
+          new long[Board.BOARD_SPACE][BitBoard.MAX_CODE + 1];
+  static {
+    Random r = new Random(SEED);
+    //Codes that fit in a nibble first, so that their keys don't depend on
+    //how many codes there are
+    for (long[] cell : cell_keys) {
+      for (int c = 1; c <= BitBoard.CELL_MASK; c++) { //Empty cells have no key
+        cell[c] = r.nextLong();
+      }
+    }
+    for (long[] cell : cell_keys) {
+      for (int c = BitBoard.CELL_MASK + 1; c < cell.length; c++) {
+        cell[c] = r.nextLong();
+      }
+    }
+  }
+
+  private Zobrist() {}
+
+  /**
+   * The key for a position in the tile sequence. There's no bound on the
+   * sequence length, so it's derived with a 64-bit mix (SplitMix64)
+   * instead of being looked up.
+   * @param c_sequence The position in the tile sequence
+   * @return The key
+   */
+  public static long sequence_key(int c_sequence) {
+    long z = (c_sequence + 1) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Computes the key of a board from scratch.
+   * @param b The low plane of the board
+   * @param h The high plane of the board
+   * @param c_sequence The position in the tile sequence
+   * @return The key
+   */
+  public static long of(long b, int h, int c_sequence) {
+    long key = sequence_key(c_sequence);
+    for (int i = 0; i < Board.BOARD_SPACE; i++) {
+      key ^= cell_keys[i][BitBoard.get(b, h, i)];
+    }
+    return key;
+  }
+
+  /**
+   * Updates a key for the cells that changed between two boards.
+   * @param key The key of the old board, including its sequence key
+   * @param old The low plane of the old board
+   * @param oh The high plane of the old board
+   * @param b The low plane of the new board
+   * @param h The high plane of the new board
+   * @return The key of the new board, still with the old sequence key
+   */
+  public static long update(long key, long old, int oh, long b, int h) {
+    if ((oh | h) != 0) {
+      for (int i = 0; i < Board.BOARD_SPACE; i++) {
+        int oc = BitBoard.get(old, oh, i), c = BitBoard.get(b, h, i);
+        if (oc != c) {
+          key ^= cell_keys[i][oc] ^ cell_keys[i][c];
+        }
+      }
+      return key;
+    }
+    
+    long d = old ^ b;
+    while (d != 0) {
+      int i = Long.numberOfTrailingZeros(d) / BitBoard.CELL_BITS;
+      key ^= cell_keys[i][BitBoard.get(old, i)] ^ cell_keys[i][BitBoard.get(b, i)];
+      d &= ~((long)BitBoard.CELL_MASK << (i * BitBoard.CELL_BITS));
+    }
+    return key;
+  }
+}
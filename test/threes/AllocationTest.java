@@ -0,0 +1,236 @@
+package threes;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import threes.Board.Direction;
+
+/**
+ * Allocation budgets for the hot paths: measures the bytes allocated per
+ * operation (per move, per evaluation, per lookahead...) and fails if any
+ * of them is over its budget. It's easy to add a boxed value or a copied
+ * array to these without noticing, and this is meant to notice.
+ *
+ * Allocation is counted with the JVM's per-thread allocation counter, so
+ * this is skipped on JVMs that don't have one. Every path is run for a
+ * while first so that the JIT has compiled it, as allocations that escape
+ * analysis removes don't count.
+ * @author Jeremy Tan, 20933708
+ */
+public class AllocationTest {
+  /** The boards the positions are taken from */
+  private static final String[] BOARDS = {"B1.txt", "exampleinput.txt", "medium-2.txt"};
+  private static final int POSITIONS_PER_BOARD = 100;
+  private static final int WARMUP_OPS = 200000;
+  private static final int MEASURED_OPS = 200000;
+  private static final int LOOKAHEAD_OPS = 200;
+  private static final int[] factors = {18,2,2,9};
+  private static final Direction[] directions = {
+    Direction.LEFT, Direction.UP, Direction.RIGHT, Direction.DOWN
+  };
+
+  private static final com.sun.management.ThreadMXBean threads =
+          (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+  private static final List<Board> positions = new ArrayList<>();
+  private static final List<int[]> sequences = new ArrayList<>();
+
+  /**
+   * A hot path, and the most it may allocate per operation.
+   */
+  private abstract static class Path {
+    private final String name;
+    private final double budget;
+
+    Path(String name, double budget) {
+      this.name = name;
+      this.budget = budget;
+    }
+
+    /**
+     * Performs the operation a number of times.
+     * @param ops The number of times
+     * @return How many units that was (usually ops)
+     */
+    protected abstract long run(int ops);
+
+    /**
+     * Warms up, measures, and checks the budget.
+     */
+    void check(int warmup, int ops) {
+      run(warmup);
+      long id = Thread.currentThread().getId();
+      long bytes = threads.getThreadAllocatedBytes(id);
+      long units = run(ops);
+      bytes = threads.getThreadAllocatedBytes(id) - bytes;
+      double per_unit = (double)bytes / Math.max(1, units);
+      assertTrue(String.format("%s: %.1f bytes, over the budget of %.0f",
+                               name, per_unit, budget), per_unit <= budget);
+    }
+  }
+
+  /**
+   * Plays the boards forward (taking the move with the best evaluation)
+   * to collect the positions.
+   */
+  @BeforeClass
+  public static void collectPositions() throws IOException {
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+    for (String name : BOARDS) {
+      int[] bt = new int[Board.BOARD_SPACE];
+      int[] s = Threes.parseBoard("testing/boards/" + name, bt);
+      Board b = new Board(bt);
+      for (int i = 0; i < POSITIONS_PER_BOARD && !b.finished(); i++) {
+        positions.add(b);
+        sequences.add(s);
+        Board best = null;
+        for (Direction d : directions) {
+          Board n = new Board(b);
+          if (n.move(s, d) && (best == null ||
+              n.evaluate(factors) > best.evaluate(factors))) {
+            best = n;
+          }
+        }
+        if (best == null) {
+          break;
+        }
+        b = best;
+      }
+    }
+  }
+
+  /**
+   * A move makes a Board and a node of its path: about 96 bytes on
+   * average, counting moves that fail.
+   */
+  @Test
+  public void boardMove() {
+    final int n = positions.size();
+    new Path("Board.move", 104) {
+      @Override protected long run(int ops) {
+        long moves = 0;
+        for (int i = 0; i < ops; i++) {
+          Board b = new Board(positions.get(i % n));
+          if (b.move(sequences.get(i % n), directions[i & 3])) {
+            moves++;
+          }
+        }
+        return moves;
+      }
+    }.check(WARMUP_OPS, MEASURED_OPS);
+  }
+
+  @Test
+  public void featuresEvaluate() {
+    final int n = positions.size();
+    new Path("Features.evaluate", 0) {
+      @Override protected long run(int ops) {
+        long r = 0;
+        for (int i = 0; i < ops; i++) {
+          r += Features.evaluate(positions.get(i % n).features(), factors);
+        }
+        return r == 42 ? ops + 1 : ops; //So the work isn't optimised away
+      }
+    }.check(WARMUP_OPS, MEASURED_OPS);
+  }
+
+  @Test
+  public void searchBoardMake() {
+    final int n = positions.size();
+    final List<SearchBoard> sbs = new ArrayList<>();
+    for (int[] s : sequences) {
+      sbs.add(new SearchBoard(s, 1));
+    }
+    new Path("SearchBoard.make", 0) {
+      @Override protected long run(int ops) {
+        long moves = 0;
+        for (int i = 0; i < ops; i++) {
+          SearchBoard sb = sbs.get(i % n);
+          sb.reset(positions.get(i % n));
+          if (sb.make(directions[i & 3])) {
+            sb.unmake();
+            moves++;
+          }
+        }
+        return moves;
+      }
+    }.check(WARMUP_OPS, MEASURED_OPS);
+  }
+
+  /**
+   * Move ordering is done at the top of every lookahead, so it mustn't
+   * allocate per node either.
+   */
+  @Test
+  public void searchBoardOrderMoves() {
+    final int n = positions.size();
+    final List<SearchBoard> sbs = new ArrayList<>();
+    for (int[] s : sequences) {
+      sbs.add(new SearchBoard(s, 1));
+    }
+    new Path("SearchBoard.orderMoves", 0) {
+      @Override protected long run(int ops) {
+        long r = 0;
+        for (int i = 0; i < ops; i++) {
+          SearchBoard sb = sbs.get(i % n);
+          sb.reset(positions.get(i % n));
+          if (sb.orderMoves(directions, factors) > 0) {
+            r += sb.orderedMove(0).ordinal();
+          }
+        }
+        return r == 42 ? ops + 1 : ops;
+      }
+    }.check(WARMUP_OPS, MEASURED_OPS);
+  }
+
+  @Test
+  public void limitedQueueAdd() {
+    final int n = positions.size();
+    final LimitedQueue q = new LimitedQueue(200);
+    new Path("LimitedQueue.add", 0) {
+      @Override protected long run(int ops) {
+        for (int i = 0; i < ops; i++) {
+          q.add(positions.get(i % n), (i >> 2) + (int)(i * 0x9E3779B9L & 1023));
+        }
+        return ops;
+      }
+    }.check(WARMUP_OPS, MEASURED_OPS);
+  }
+
+  /**
+   * A lookahead makes its result queue and the boards in it, and nothing
+   * per node.
+   */
+  @Test
+  public void lookahead() {
+    //Measured at 3.8K, 7.5K and 11.2K bytes. Two small arrays for each
+    //node that orders its moves take depth 6 to 12.7K.
+    int[] budgets = {4000, 8000, 12000};
+    for (int depth = 2; depth <= 6; depth += 2) {
+      final int d = depth;
+      final int[] s = sequences.get(0);
+      final List<Board> game = new ArrayList<>();
+      for (int i = 0; i < positions.size(); i++) {
+        if (sequences.get(i) == s) {
+          game.add(positions.get(i));
+        }
+      }
+      new Path("lookahead.depth" + d, budgets[depth / 2 - 1]) {
+        private final ASSolver solver = new ASSolver(s, true, false,
+                d, -1, -1, -1, -1, -1, -1, 0, false, 0);
+        @Override protected long run(int ops) {
+          for (int i = 0; i < ops; i++) {
+            solver.lookahead(game.get(i % game.size()), 20, d, null);
+          }
+          return ops;
+        }
+      }.check(LOOKAHEAD_OPS, LOOKAHEAD_OPS);
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package threes;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import threes.Board.Direction;
+
+/**
+ * Checks the packed Board (and SearchBoard) against the original game
+ * mechanics (see ReferenceBoard), including on boards with tiles too large
+ * for the lookup tables.
+ * @author Jeremy Tan, 20933708
+ */
+public class BoardTest {
+  private static final int[] FACTORS = {18,2,2,9};
+  private static final Direction[] directions = {
+    Direction.LEFT, Direction.UP, Direction.RIGHT, Direction.DOWN
+  };
+
+  private static int tile(int code) {
+    return code < 3 ? code : 3 << (code - 3);
+  }
+
+  private static void assertSame(String msg, ReferenceBoard ref, Board b) {
+    assertArrayEquals(msg, ref.tiles(), BitBoard.unpack(b.packed(), b.packedHigh()));
+    assertEquals(msg, ref.nMoves(), b.nMoves());
+    assertEquals(msg, ref.finished(), b.finished());
+    assertEquals(msg, ref.score(), b.score());
+    assertEquals(msg, ref.zeros(), BitBoard.zeros(b.packed(), b.packedHigh()));
+    assertEquals(msg, ref.evaluate(FACTORS), b.evaluate(FACTORS));
+    assertEquals(msg, Features.of(b.packed(), b.packedHigh()), b.features());
+    assertEquals(msg, Zobrist.of(b.packed(), b.packedHigh(), b.nMoves()), b.zobrist());
+  }
+
+  /**
+   * Plays random games from random boards, on Board, SearchBoard and the
+   * reference, in step. Larger tiles are more likely than in a real game,
+   * both on the board and in the sequence, so that boards move between
+   * the table and the cell-by-cell paths of BitBoard.
+   */
+  @Test
+  public void randomGamesMatchReference() {
+    Random r = new Random(0x3001);
+    for (int game = 0; game < 3000; game++) {
+      int maxCode = 3 + r.nextInt(BitBoard.MAX_CODE - 2);
+      int[] t = new int[Board.BOARD_SPACE];
+      for (int i = 0; i < t.length; i++) {
+        t[i] = r.nextInt(3) == 0 ? 0 : tile(1 + r.nextInt(maxCode));
+      }
+      int[] s = new int[1 + r.nextInt(150)];
+      for (int i = 0; i < s.length; i++) {
+        s[i] = r.nextInt(8) == 0 ? tile(1 + r.nextInt(maxCode)) : 1 + r.nextInt(3);
+      }
+
+      ReferenceBoard ref = new ReferenceBoard(t);
+      if (ref.overflows()) {
+        continue;
+      }
+      Board b = new Board(t);
+      SearchBoard sb = new SearchBoard(s, s.length);
+      sb.reset(b);
+      String msg = Arrays.toString(t);
+      assertSame(msg, ref, b);
+
+      while (!ref.finished()) {
+        Direction d = directions[r.nextInt(4)];
+        ReferenceBoard prev = new ReferenceBoard(ref);
+        boolean moved = ref.move(s, d);
+        if (ref.overflows()) {
+          break;
+        }
+        msg = Arrays.toString(prev.tiles()) + " " + d + " " + b.nMoves();
+        if (moved) {
+          assertTrue(msg, sb.make(d));
+        } else {
+          //A failed move leaves a SearchBoard as it was
+          assertTrue(msg, !sb.make(d));
+        }
+        assertEquals(msg, moved, b.move(s, d));
+        assertSame(msg, ref, b);
+        if (!moved) {
+          break;
+        }
+        assertEquals(msg, b.packed(), sb.packed());
+        assertEquals(msg, b.packedHigh(), sb.packedHigh());
+        assertEquals(msg, b.features(), sb.features());
+        assertEquals(msg, b.zobrist(), sb.zobrist());
+        assertEquals(msg, b.score(), sb.score());
+        assertEquals(msg, b.finished(), sb.finished());
+        assertEquals(msg, b, sb.toBoard());
+      }
+
+      //And back again
+      while (sb.depth() > 0) {
+        sb.unmake();
+      }
+      assertEquals(new Board(t).packed(), sb.packed());
+      assertEquals(new Board(t).packedHigh(), sb.packedHigh());
+      assertEquals(new Board(t).zobrist(), sb.zobrist());
+    }
+  }
+
+  /**
+   * The best recorded game of longboard3 makes tiles of 12288 and more,
+   * and must replay to the same score.
+   */
+  @Test
+  public void replaysRecordedGame() throws IOException {
+    int[] t = new int[Board.BOARD_SPACE];
+    int[] s = Threes.parseBoard("testing/boards/longboard3.txt", t);
+    String moves;
+    int score;
+    try (BufferedReader br = new BufferedReader(new FileReader(
+            "testing/final/results-part2/out-a8-longboard3.txt"))) {
+      score = Integer.parseInt(br.readLine().split(",")[0].trim());
+      br.readLine();
+      moves = br.readLine().trim();
+    }
+
+    Board b = new Board(t);
+    ReferenceBoard ref = new ReferenceBoard(t);
+    for (Direction d : Direction.parse(moves)) {
+      assertTrue("Move " + b.nMoves(), ref.move(s, d));
+      assertTrue("Move " + b.nMoves(), b.move(s, d));
+    }
+    assertEquals(moves.length(), b.nMoves());
+    assertArrayEquals(ref.tiles(), BitBoard.unpack(b.packed(), b.packedHigh()));
+    assertEquals(score, ref.score());
+    assertEquals(score, b.score());
+  }
+
+  @Test
+  public void largestTileIsValid() {
+    assertTrue(Board.valid_tile(BitBoard.MAX_TILE));
+    assertEquals(BitBoard.MAX_TILE, BitBoard.decode(BitBoard.encode(BitBoard.MAX_TILE)));
+    assertTrue(!Board.valid_tile(BitBoard.MAX_TILE * 2));
+    assertTrue(!Board.valid_tile(-3));
+  }
+}
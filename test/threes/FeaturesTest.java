@@ -0,0 +1,162 @@
+package threes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import threes.Board.Direction;
+
+/**
+ * Checks the feature vectors, and the batched evaluation of them, against
+ * the heuristics computed directly on the tiles (see ReferenceBoard).
+ * @author Jeremy Tan, 20933708
+ */
+public class FeaturesTest {
+  private static final int[][] FACTORS = {
+    {18,2,2,9}, {1,1,1,1}, {0,0,0,0}, {100,-3,7,0}
+  };
+  private static final Direction[] directions = {
+    Direction.LEFT, Direction.UP, Direction.RIGHT, Direction.DOWN
+  };
+
+  /**
+   * @param code A tile code, see BitBoard
+   * @return Its tile value
+   */
+  private static int tile(int code) {
+    return code < 3 ? code : 3 << (code - 3);
+  }
+
+  /**
+   * A random board, with tile codes up to maxCode and roughly the given
+   * proportion of empty cells.
+   */
+  private static int[] random_board(Random r, int maxCode, double empty) {
+    int[] t = new int[Board.BOARD_SPACE];
+    for (int i = 0; i < t.length; i++) {
+      t[i] = r.nextDouble() < empty ? 0 : tile(1 + r.nextInt(maxCode));
+    }
+    return t;
+  }
+
+  private static List<int[]> edge_cases() {
+    List<int[]> ret = new ArrayList<>();
+    int big = tile(BitBoard.MAX_CODE - 1), max = BitBoard.MAX_TILE;
+    ret.add(new int[Board.BOARD_SPACE]);
+    ret.add(new int[]{1,2,1,2, 2,1,2,1, 1,2,1,2, 2,1,2,1});
+    ret.add(new int[]{1,1,1,1, 2,2,2,2, 1,1,1,1, 2,2,2,2});
+    ret.add(new int[]{3,6,3,6, 6,3,6,3, 3,6,3,6, 6,3,6,3});
+    ret.add(new int[]{3,3,3,3, 3,3,3,3, 3,3,3,3, 3,3,3,3});
+    ret.add(new int[]{3,6,12,24, 48,96,192,384, 768,1536,3072,6144,
+                      12288,1,2,3});
+    ret.add(new int[]{12288,12288,0,12288, 24576,6144,12288,3, 
+                      12288,12288,1,2, 0,12288,24576,24576});
+    ret.add(new int[]{max,0,max,0, 0,max,0,max, max,0,max,0, 0,max,0,max});
+    ret.add(new int[]{3,max,3,max, max,3,max,3, 3,max,3,max, max,3,max,3});
+    ret.add(new int[]{max,big,max,big, big,max,big,max, 
+                      max,big,max,big, big,max,big,max});
+    ret.add(new int[]{0,0,0,0, 0,big,0,0, 0,0,0,0, 0,0,0,1});
+    ret.add(new int[]{big,big,big,big, big,big,big,big,
+                      big,big,big,big, big,big,big,big});
+    ret.add(new int[]{big,1,big,2, 1,big,3,big, big,0,big,0, 0,big,0,big});
+    return ret;
+  }
+
+  private static List<int[]> boards() {
+    Random r = new Random(0x3008);
+    List<int[]> ret = edge_cases();
+    while (ret.size() < 2000) {
+      int[] t = random_board(r, 1 + r.nextInt(BitBoard.MAX_CODE), r.nextDouble());
+      if (!new ReferenceBoard(t).overflows()) {
+        ret.add(t);
+      }
+    }
+    return ret;
+  }
+
+  @Test
+  public void featuresMatchReference() {
+    for (int[] t : boards()) {
+      Board b = new Board(t);
+      ReferenceBoard ref = new ReferenceBoard(t);
+      String msg = new Board(t).toString();
+      assertEquals(msg, ref.dof(), b.dof());
+      assertEquals(msg, ref.zeros(), b.zeros());
+      assertEquals(msg, ref.nCombinable(), b.nCombinable());
+      assertEquals(msg, ref.smoothness(), b.smoothness());
+      assertEquals(msg, ref.checkerboarding3(), b.checkerboarding3());
+      for (int[] factors : FACTORS) {
+        assertEquals(msg, ref.evaluate(factors), b.evaluate(factors));
+      }
+    }
+  }
+
+  @Test
+  public void batchEvaluationMatchesBoard() {
+    List<int[]> boards = boards();
+    long[] f = new long[boards.size()];
+    for (int i = 0; i < f.length; i++) {
+      f[i] = new Board(boards.get(i)).features();
+    }
+    for (int[] factors : FACTORS) {
+      int[] out = new int[f.length];
+      Features.evaluate(f, f.length, factors, out);
+      for (int i = 0; i < f.length; i++) {
+        int[] t = boards.get(i);
+        assertEquals(new Board(t).evaluate(factors), out[i]);
+        assertEquals(new ReferenceBoard(t).evaluate(factors), out[i]);
+      }
+    }
+  }
+
+  /**
+   * Fills a LeafBatch from searches below some boards, and checks each
+   * leaf against the board it turns back into, and the reference.
+   */
+  @Test
+  public void leafBatchMatchesBoard() {
+    Random r = new Random(0x3108);
+    int[] s = new int[64];
+    for (int i = 0; i < s.length; i++) {
+      s[i] = 1 + r.nextInt(3);
+    }
+    int depth = 3;
+    SearchBoard sb = new SearchBoard(s, depth);
+    for (int[] t : boards().subList(0, 200)) {
+      Board root = new Board(t);
+      LeafBatch batch = new LeafBatch(1 << (2 * depth));
+      sb.reset(root);
+      collect(sb, batch, depth);
+      for (int[] factors : FACTORS) {
+        batch.evaluate(factors);
+        for (int i = 0; i < batch.size(); i++) {
+          Board leaf = batch.toBoard(i);
+          ReferenceBoard ref = new ReferenceBoard(t);
+          for (Direction d : Direction.parse(leaf.moves())) {
+            ref.move(s, d);
+          }
+          assertEquals(leaf.evaluate(factors), batch.evaluation(i));
+          if (!ref.overflows()) {
+            assertEquals(ref.evaluate(factors), batch.evaluation(i));
+          }
+        }
+      }
+    }
+  }
+
+  private static void collect(SearchBoard sb, LeafBatch batch, int depth) {
+    if (depth == 0 || sb.finished()) {
+      if (!sb.finished()) {
+        batch.add(sb);
+      }
+      return;
+    }
+    for (Direction d : directions) {
+      if (sb.make(d)) {
+        collect(sb, batch, depth - 1);
+        sb.unmake();
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package threes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import threes.Board.Direction;
+
+/**
+ * Checks the queue's order, including between boards with the same score:
+ * the board added first counts as the better one.
+ * @author Jeremy Tan, 20933708
+ */
+public class LimitedQueueTest {
+  private static final Direction[] directions = {
+    Direction.LEFT, Direction.UP, Direction.RIGHT, Direction.DOWN
+  };
+
+  /**
+   * Distinct boards (by Zobrist key), from random games.
+   */
+  private static List<Board> boards(int n) {
+    Random r = new Random(0x3010);
+    List<Board> ret = new ArrayList<>();
+    int[] s = new int[4096];
+    for (int i = 0; i < s.length; i++) {
+      s[i] = 1 + r.nextInt(3);
+    }
+    while (ret.size() < n) {
+      int[] t = new int[Board.BOARD_SPACE];
+      for (int i = 0; i < t.length; i++) {
+        t[i] = r.nextInt(2) == 0 ? 0 : 1 + r.nextInt(3);
+      }
+      Board b = new Board(t);
+      while (ret.size() < n && b.move(s, directions[r.nextInt(4)])) {
+        ret.add(b);
+        b = new Board(b);
+      }
+    }
+    return ret;
+  }
+
+  @Test
+  public void tiesPollInOrderAdded() {
+    List<Board> boards = boards(500);
+    LimitedQueue q = new LimitedQueue(boards.size());
+    for (int i = 0; i < boards.size(); i++) {
+      assertTrue(q.add(boards.get(i), i % 7));
+    }
+    for (int score = 6; score >= 0; score--) {
+      for (int i = score; i < boards.size(); i += 7) {
+        assertEquals(score, q.lastScore());
+        assertSame(boards.get(i), q.pollLast());
+      }
+    }
+    assertTrue(q.isEmpty());
+  }
+
+  @Test
+  public void fullQueueDropsLatestTie() {
+    List<Board> boards = boards(300);
+    LimitedQueue q = new LimitedQueue(100);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(q.add(boards.get(i), i % 2));
+    }
+    //No better than the worst, and added later
+    assertTrue(!q.add(boards.get(100), 0));
+    //Better: drops the last board added with a score of 0
+    assertTrue(q.add(boards.get(101), 1));
+    assertEquals(1, q.trimmed());
+    assertSame(boards.get(96), q.first());
+    for (int i = 1; i < 100; i += 2) {
+      assertSame(boards.get(i), q.pollLast());
+    }
+    assertSame(boards.get(101), q.pollLast());
+    for (int i = 0; i < 98; i += 2) {
+      assertSame(boards.get(i), q.pollLast());
+    }
+    assertTrue(q.isEmpty());
+  }
+
+  @Test
+  public void duplicatesAreDropped() {
+    List<Board> boards = boards(10);
+    LimitedQueue q = new LimitedQueue(10);
+    assertTrue(q.add(boards.get(3), 5));
+    assertTrue(!q.add(new Board(boards.get(3)), 9));
+    assertEquals(1, q.size());
+    assertEquals(5, q.lastScore());
+  }
+}
@@ -0,0 +1,282 @@
+package threes;
+
+import java.util.Arrays;
+import threes.Board.Direction;
+
+/**
+ * The original, unpacked game mechanics and heuristics (one int per
+ * cell, holding the tile value), kept as a reference that the packed
+ * Board is checked against.
+ * @author Jeremy Tan, 20933708
+ */
+final class ReferenceBoard {
+  private static final int BOARD_WIDTH = Board.BOARD_WIDTH;
+  private static final int BOARD_SPACE = Board.BOARD_SPACE;
+  private static final char[][] g_trn = {
+    {0,1,2,3,4,5,6,7,8,9,10,11,12,13,14,15}, //Left
+    {0,4,8,12,1,5,9,13,2,6,10,14,3,7,11,15}, //Up
+    {15,14,13,12,11,10,9,8,7,6,5,4,3,2,1,0}, //Right
+    {15,11,7,3,14,10,6,2,13,9,5,1,12,8,4,0} //Down
+  };
+
+  private final int[] it;
+  private int c_sequence;
+  private boolean finished;
+
+  ReferenceBoard(int[] board) {
+    it = Arrays.copyOf(board, board.length);
+  }
+
+  ReferenceBoard(ReferenceBoard o) {
+    it = Arrays.copyOf(o.it, o.it.length);
+    c_sequence = o.c_sequence;
+    finished = o.finished;
+  }
+
+  int[] tiles() {
+    return Arrays.copyOf(it, it.length);
+  }
+
+  int nMoves() {
+    return c_sequence;
+  }
+
+  boolean finished() {
+    return finished;
+  }
+
+  /**
+   * Combining two of the largest tiles (3*2^29) overflows an int, which
+   * this allows and Board doesn't, so the two can't be compared once a
+   * board has two of them next to each other.
+   * @return true iff a tile has overflowed, or two are about to
+   */
+  boolean overflows() {
+    for (int i = 0; i < BOARD_SPACE; i++) {
+      if (it[i] < 0) {
+        return true;
+      } else if (it[i] == BitBoard.MAX_TILE &&
+                 ((i % BOARD_WIDTH < BOARD_WIDTH - 1 && it[i + 1] == it[i]) ||
+                  (i + BOARD_WIDTH < BOARD_SPACE && it[i + BOARD_WIDTH] == it[i]))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean shift_valid(int from, int to) {
+    return (from != 0 && to == 0) || (from == 1 && to == 2)
+            || (from == 2 && to == 1) || (from > 2 && from == to);
+  }
+
+  private static boolean is_pow2(int v) {
+    return v != 0 && (v & (v - 1)) == 0;
+  }
+
+  private char insert_mask(char seq_rows, char[] seq_trn) {
+    for (int i = 0; i < BOARD_WIDTH && !is_pow2(seq_rows); i++) {
+      int min_value = Integer.MAX_VALUE;
+      for (int j = 0; j < BOARD_WIDTH; j++) {
+        if ((seq_rows & (1 << j)) != 0) {
+          char idx = seq_trn[i * BOARD_WIDTH + j];
+          if (it[idx] < min_value) {
+            min_value = it[idx];
+            seq_rows &= ~((1 << j) - 1);
+          } else if (it[idx] > min_value) {
+            seq_rows ^= 1 << j;
+          }
+        }
+      }
+    }
+    return seq_rows;
+  }
+
+  boolean move(int[] s, Direction d) {
+    boolean local_shift = false, insert_last;
+    char seq_rows = 0;
+    char[] trn, seq_trn;
+
+    if (c_sequence >= s.length || finished) {
+      finished = true;
+      return false;
+    }
+
+    switch (d) {
+      case LEFT: trn = g_trn[0]; seq_trn = g_trn[3]; insert_last = false; break;
+      case UP: trn = g_trn[1]; seq_trn = g_trn[2]; insert_last = true; break;
+      case RIGHT: trn = g_trn[2]; seq_trn = g_trn[1]; insert_last = false; break;
+      default: trn = g_trn[3]; seq_trn = g_trn[0]; insert_last = true; break;
+    }
+
+    for (int i = 0; i < BOARD_WIDTH; i++) {
+      for (int j = 1; j < BOARD_WIDTH; j++) {
+        char idx = trn[i * BOARD_WIDTH + j];
+        char pidx = trn[i * BOARD_WIDTH + j - 1];
+        if (local_shift) {
+          it[pidx] = it[idx];
+          it[idx] = 0;
+        } else if (shift_valid(it[idx], it[pidx])) {
+          seq_rows |= 1 << (BOARD_WIDTH - i - 1);
+          local_shift = true;
+          it[pidx] += it[idx];
+          it[idx] = 0;
+        }
+      }
+      local_shift = false;
+    }
+
+    if (seq_rows == 0) {
+      finished = true;
+      return false;
+    }
+    int j = 0;
+    seq_rows = insert_mask(seq_rows, seq_trn);
+    if (insert_last) {
+      while ((seq_rows >>= 1) != 0) {
+        j++;
+      }
+    } else {
+      while ((seq_rows & 1) != 1) {
+        seq_rows >>= 1;
+        j++;
+      }
+    }
+    it[seq_trn[j]] = s[c_sequence++];
+    if (c_sequence >= s.length || dof() == 0) {
+      finished = true;
+    }
+    return true;
+  }
+
+  static int tile_score(int t) {
+    if (t == 1 || t == 2) {
+      return 1;
+    } else if (t > 2) {
+      int log2 = 0;
+      t /= 3;
+      while ((t >>= 1) != 0) {
+        log2++;
+      }
+      return (int)Math.pow(3, log2 + 1);
+    }
+    return 0;
+  }
+
+  int score() {
+    int score = 0;
+    for (int i = 0; i < BOARD_SPACE; i++) {
+      score += tile_score(it[i]);
+    }
+    return score;
+  }
+
+  int dof() {
+    int can_shift = 0;
+    for (int i = 0; i < BOARD_WIDTH; i++) {
+      for (int j = 1; j < BOARD_WIDTH; j++) {
+        int idx = i * BOARD_WIDTH + j, pidx = idx - 1;
+        if (shift_valid(it[idx], it[pidx])) {
+          can_shift |= 1;
+        }
+        if (shift_valid(it[g_trn[1][idx]], it[g_trn[1][pidx]])) {
+          can_shift |= 2;
+        }
+        if (shift_valid(it[pidx], it[idx])) {
+          can_shift |= 4;
+        }
+        if (shift_valid(it[g_trn[3][idx]], it[g_trn[3][pidx]])) {
+          can_shift |= 8;
+        }
+      }
+    }
+    return Integer.bitCount(can_shift);
+  }
+
+  int nCombinable() {
+    int n = 0;
+    for (int i = 0; i < BOARD_WIDTH; i++) {
+      for (int j = 1; j < BOARD_WIDTH; j++) {
+        int cl = it[i * BOARD_WIDTH + j];
+        int pl = it[i * BOARD_WIDTH + j - 1];
+        int cu = it[g_trn[1][i * BOARD_WIDTH + j]];
+        int pu = it[g_trn[1][i * BOARD_WIDTH + j - 1]];
+        if (cl != 0 && pl != 0 && (shift_valid(cl, pl) || shift_valid(pl, cl))) {
+          n++;
+        }
+        if (cu != 0 && pu != 0 && (shift_valid(cu, pu) || shift_valid(pu, cu))) {
+          n++;
+        }
+      }
+    }
+    return n;
+  }
+
+  int zeros() {
+    int n = 0;
+    for (int v : it) {
+      n += v == 0 ? 1 : 0;
+    }
+    return n;
+  }
+
+  private static int sign(int v) {
+    return v < 0 ? -1 : v > 0 ? 1 : 0;
+  }
+
+  private static int elevation(int v) {
+    return (int)((v / 3) <= 0 ? 0 : Math.log(v / 3) / Math.log(2));
+  }
+
+  int checkerboarding3() {
+    int checkerboarding = 0;
+    for (int i = 0; i < BOARD_WIDTH; i++) {
+      int sgnl = elevation(it[g_trn[0][i * BOARD_WIDTH + 1]]) -
+                 elevation(it[g_trn[0][i * BOARD_WIDTH]]);
+      int sgnd = elevation(it[g_trn[1][i * BOARD_WIDTH + 1]]) -
+                 elevation(it[g_trn[1][i * BOARD_WIDTH]]);
+      for (int j = 0; j < BOARD_WIDTH - 1; j++) {
+        int csgnl = elevation(it[g_trn[0][i * BOARD_WIDTH + j + 1]]) -
+                    elevation(it[g_trn[0][i * BOARD_WIDTH + j]]);
+        int csgnd = elevation(it[g_trn[1][i * BOARD_WIDTH + j + 1]]) -
+                    elevation(it[g_trn[1][i * BOARD_WIDTH + j]]);
+        if (csgnl != 0) {
+          if (sign(csgnl) != sign(sgnl)) {
+            checkerboarding += Math.abs(csgnl - sgnl);
+          }
+          sgnl = csgnl;
+        }
+        if (csgnd != 0) {
+          if (sign(csgnd) != sign(sgnd)) {
+            checkerboarding += Math.abs(csgnd - sgnd);
+          }
+          sgnd = csgnd;
+        }
+      }
+    }
+    return -checkerboarding;
+  }
+
+  int smoothness() {
+    int smoothness = 0;
+    for (int i = 0; i < BOARD_WIDTH - 1; i++) {
+      for (int j = 0; j < BOARD_WIDTH - 1; j++) {
+        int c = it[i * BOARD_WIDTH + j];
+        if (c > 0) {
+          int r = it[i * BOARD_WIDTH + j + 1];
+          int d = it[(i + 1) * BOARD_WIDTH + j];
+          smoothness -= Math.abs(elevation(c) - elevation(r));
+          smoothness -= Math.abs(elevation(c) - elevation(d));
+        }
+      }
+    }
+    return smoothness;
+  }
+
+  int evaluate(int[] factors) {
+    return (1 << (2 * dof())) +
+           factors[0] * zeros() +
+           factors[1] * checkerboarding3() +
+           factors[2] * smoothness() +
+           factors[3] * nCombinable();
+  }
+}
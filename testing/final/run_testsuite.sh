@@ -1,13 +1,9 @@
 #!/usr/bin/env bash
 #Place boards in the 'boards' folder.
+#Solves them all in the one JVM (batch mode); see out/summary.csv.
 #opts="-v"
 opts="-v -a 4 -u 300 -q 20000"
 mkdir -p out
 mkdir -p logs
 
-for f in $(ls boards); do
-	filename=$(basename "$f")
-	opts="$opts boards/$f -o out/out-$filename"
-	
-	java -jar threes.jar $opts 2>&1 | tee "logs/log-$filename"
-done
+java -jar threes.jar $opts -B out boards 2>&1 | tee "logs/log-batch.txt"